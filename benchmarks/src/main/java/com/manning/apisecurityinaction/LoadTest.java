@@ -0,0 +1,179 @@
+package com.manning.apisecurityinaction;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import org.json.JSONObject;
+
+/**
+ * Drives a running server with a fixed number of concurrent clients and reports throughput, latency percentiles
+ * and response statuses. Each client lists the latest messages of a shared space and, for one request in
+ * {@code writeEvery}, posts a new one, all with one bearer token.
+ * <p>
+ * The server must be started with a rate limit above the offered load, as every client shares one IP, for
+ * example {@code -Drate.limit=100000 -Drate.limit.burst=100000}. Its self-signed certificate is trusted without
+ * checks, so only point this at a test server.
+ * <p>
+ * Usage, after {@code mvn package} in this module:
+ * {@code java -cp target/benchmarks.jar com.manning.apisecurityinaction.LoadTest <base-uri> <clients> <seconds>
+ * [writeEvery]}
+ */
+public class LoadTest {
+    private static final String PASSWORD = "load-test-password";
+
+    public static void main(String... args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("usage: LoadTest <base-uri> <clients> <seconds> [writeEvery]");
+            System.exit(1);
+        }
+
+        var base = URI.create(args[0]);
+        var clients = Integer.parseInt(args[1]);
+        var duration = Duration.ofSeconds(Long.parseLong(args[2]));
+        var writeEvery = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+
+        var executor = Executors.newFixedThreadPool(clients);
+        var http = HttpClient.newBuilder().sslContext(trustAll()).executor(executor).build();
+
+        var user = "load" + Long.toString(System.nanoTime(), 36);
+        send(http, post(base.resolve("/users"), new JSONObject().put("username", user).put("password", PASSWORD)),
+                201);
+        var basic = "Basic " + Base64.getEncoder().encodeToString((user + ":" + PASSWORD).getBytes(UTF_8));
+        var login = post(base.resolve("/sessions"), new JSONObject()).header("Authorization", basic);
+        var token = "Bearer " + new JSONObject(send(http, login, 200)).getString("token");
+        var space = new JSONObject(send(http, post(base.resolve("/spaces"),
+                new JSONObject().put("name", user).put("owner", user)).header("Authorization", token), 201));
+        var messages = base.resolve(URI.create(space.getString("uri")).getPath() + "/messages");
+
+        var message = new JSONObject().put("author", user).put("message", "load test");
+        for (var i = 0; i < 50; i++) {
+            send(http, post(messages, message).header("Authorization", token), 201);
+        }
+
+        var list = HttpRequest.newBuilder(URI.create(messages + "?limit=20")).header("Authorization", token)
+                .GET().build();
+        var write = post(messages, message).header("Authorization", token).build();
+        var results = run(http, executor, clients, duration, writeEvery, list, write);
+        executor.shutdownNow();
+        results.print(clients, duration);
+    }
+
+    private static Results run(HttpClient http, ExecutorService executor, int clients, Duration duration,
+            int writeEvery, HttpRequest list, HttpRequest write) throws InterruptedException {
+        var results = new Results();
+        var end = System.nanoTime() + duration.toNanos();
+        var workers = new Thread[clients];
+        for (var i = 0; i < clients; i++) {
+            workers[i] = new Thread(() -> {
+                var random = ThreadLocalRandom.current();
+                while (System.nanoTime() < end) {
+                    var request = random.nextInt(writeEvery) == 0 ? write : list;
+                    var start = System.nanoTime();
+                    try {
+                        var status = http.send(request, BodyHandlers.discarding()).statusCode();
+                        results.record(status, System.nanoTime() - start);
+                    } catch (Exception e) {
+                        results.record(-1, System.nanoTime() - start);
+                    }
+                }
+            });
+            workers[i].start();
+        }
+        for (var worker : workers) {
+            worker.join();
+        }
+        return results;
+    }
+
+    private static HttpRequest.Builder post(URI uri, JSONObject body) {
+        return HttpRequest.newBuilder(uri).header("Content-Type", "application/json")
+                .POST(BodyPublishers.ofString(body.toString()));
+    }
+
+    private static String send(HttpClient http, HttpRequest.Builder request, int expectedStatus) throws Exception {
+        var response = http.send(request.build(), BodyHandlers.ofString());
+        if (response.statusCode() != expectedStatus) {
+            throw new IllegalStateException(request.build().uri() + " returned " + response.statusCode() + ": "
+                    + response.body());
+        }
+        return response.body();
+    }
+
+    private static SSLContext trustAll() throws Exception {
+        var trustAll = new X509TrustManager() {
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        };
+        var context = SSLContext.getInstance("TLS");
+        context.init(null, new TrustManager[] { trustAll }, new SecureRandom());
+        return context;
+    }
+
+    private static class Results {
+        private static final int MAX_MILLIS = 10_000;
+
+        private final long[] histogram = new long[MAX_MILLIS * 10 + 1];
+        private final Map<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+
+        void record(int status, long nanos) {
+            var bucket = (int) Math.min(nanos / 100_000, histogram.length - 1);
+            synchronized (histogram) {
+                histogram[bucket]++;
+            }
+            statuses.computeIfAbsent(status, s -> new LongAdder()).increment();
+        }
+
+        void print(int clients, Duration duration) {
+            var total = Arrays.stream(histogram).sum();
+            System.out.printf("clients=%d requests=%d throughput=%.0f/s p50=%.1fms p99=%.1fms max=%.1fms%n",
+                    clients, total, total / (double) duration.toSeconds(), percentile(total, 0.50),
+                    percentile(total, 0.99), percentile(total, 1.0));
+            var byStatus = new TreeMap<Integer, Long>();
+            statuses.forEach((status, count) -> byStatus.put(status, count.sum()));
+            System.out.println("statuses=" + byStatus);
+        }
+
+        private double percentile(long total, double fraction) {
+            var target = Math.max(1, (long) Math.ceil(total * fraction));
+            var seen = 0L;
+            for (var i = 0; i < histogram.length; i++) {
+                seen += histogram[i];
+                if (seen >= target) {
+                    return (i + 1) / 10.0;
+                }
+            }
+            return MAX_MILLIS;
+        }
+    }
+}
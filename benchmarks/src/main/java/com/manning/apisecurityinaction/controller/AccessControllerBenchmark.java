@@ -0,0 +1,107 @@
+package com.manning.apisecurityinaction.controller;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.time.LocalTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.kie.api.KieBase;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.manning.apisecurityinaction.controller.ABACAccessController.Decision;
+import com.manning.apisecurityinaction.controller.DroolsAccessController.Action;
+import com.manning.apisecurityinaction.controller.DroolsAccessController.Environment;
+import com.manning.apisecurityinaction.controller.DroolsAccessController.Resource;
+import com.manning.apisecurityinaction.controller.DroolsAccessController.Subject;
+
+/**
+ * Compares one ABAC decision on accessrules.drl as evaluated by the original per-request stateful session and
+ * by {@link DroolsAccessController} with and without its decision cache, and the same decision on the
+ * equivalent accessrules.policy evaluated by {@link CompiledPolicyController}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = { "--add-opens", "java.base/java.lang=ALL-UNNAMED" })
+public class AccessControllerBenchmark {
+    @Param({ "GET", "DELETE" })
+    public String method;
+
+    private KieBase kieBase;
+    private DroolsAccessController stateless;
+    private DroolsAccessController cached;
+    private CompiledPolicyController compiled;
+
+    private final Map<String, Object> subAttrs = new HashMap<>();
+    private final Map<String, Object> resourceAttrs = new HashMap<>();
+    private final Map<String, Object> actionAttrs = new HashMap<>();
+    private final Map<String, Object> envAttrs = new HashMap<>();
+
+    @Setup
+    public void setup() throws IOException {
+        try (var in = getClass().getResourceAsStream("/accessrules.drl")) {
+            kieBase = RuleBaseCompiler.compile(new String(in.readAllBytes(), UTF_8));
+        }
+        stateless = new DroolsAccessController(false);
+        cached = new DroolsAccessController(true);
+        compiled = CompiledPolicyController.fromClasspath("/accessrules.policy");
+
+        subAttrs.put("user", "demo");
+        subAttrs.put("groups", null);
+        resourceAttrs.put("path", "/spaces/1/messages/2");
+        resourceAttrs.put("space", "1");
+        actionAttrs.put("method", method);
+        envAttrs.put("timeOfDay", LocalTime.of(20, 15));
+        envAttrs.put("ip", "127.0.0.1");
+    }
+
+    /**
+     * The evaluation DroolsAccessController originally did: a new stateful session per request.
+     */
+    @Benchmark
+    public boolean statefulSessionPerRequest() {
+        var session = kieBase.newKieSession();
+        try {
+            var decision = new Decision();
+            session.setGlobal("decision", decision);
+            session.insert(new Subject(subAttrs));
+            session.insert(new Resource(resourceAttrs));
+            session.insert(new Action(actionAttrs));
+            session.insert(new Environment(envAttrs));
+            session.fireAllRules();
+            return decision.isPermitted();
+        } finally {
+            session.dispose();
+        }
+    }
+
+    @Benchmark
+    public boolean sharedStatelessSession() {
+        return stateless.checkPermitted(subAttrs, resourceAttrs, actionAttrs, envAttrs).isPermitted();
+    }
+
+    @Benchmark
+    public boolean decisionCache() {
+        return cached.checkPermitted(subAttrs, resourceAttrs, actionAttrs, envAttrs).isPermitted();
+    }
+
+    @Benchmark
+    public boolean compiledPolicy() {
+        return compiled.checkPermitted(subAttrs, resourceAttrs, actionAttrs, envAttrs).isPermitted();
+    }
+}
@@ -0,0 +1,57 @@
+package com.manning.apisecurityinaction;
+
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+
+import org.dalesbred.Database;
+import org.h2.jdbcx.JdbcConnectionPool;
+
+import com.manning.apisecurityinaction.controller.MessageArchive;
+import com.manning.apisecurityinaction.controller.Metrics;
+
+public class ArchiveCommand {
+    public static void main(String... args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("usage: ArchiveCommand <jdbc-url> archive [days] | restore [space-id...]");
+            System.exit(1);
+        }
+
+        // Another process cannot reach the server's in-memory database, and the server must be stopped first
+        // anyway, as it holds the archive directory for as long as it runs.
+        if (args[0].startsWith("jdbc:h2:mem:")) {
+            System.err.println("ArchiveCommand needs a file or server database, not " + args[0]);
+            System.exit(1);
+        }
+
+        var datasource = JdbcConnectionPool.create(args[0], "natter", "password");
+        var queries = new Queries(Database.forDataSource(datasource), new Metrics());
+        var archive = new MessageArchive(queries, Paths.get(System.getProperty("archive.dir", "archive")));
+
+        switch (args[1]) {
+            case "archive":
+                var days = args.length > 2 ? Long.parseLong(args[2]) : Long.getLong("archive.age.days", 30);
+                var archived = archive.archiveOlderThan(Instant.now().minus(Duration.ofDays(days)));
+                System.out.println("archived " + archived + " messages");
+                break;
+            case "restore":
+                var restored = 0;
+                if (args.length > 2) {
+                    for (var i = 2; i < args.length; i++) {
+                        restored += archive.restore(Long.parseLong(args[i]));
+                    }
+                } else {
+                    for (var spaceId : archive.archivedSpaces()) {
+                        restored += archive.restore(spaceId);
+                    }
+                }
+                System.out.println("restored " + restored + " messages");
+                break;
+            default:
+                System.err.println("unknown command: " + args[1]);
+                System.exit(1);
+        }
+        archive.close();
+        datasource.dispose();
+    }
+}
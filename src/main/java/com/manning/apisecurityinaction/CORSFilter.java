@@ -2,41 +2,55 @@ package com.manning.apisecurityinaction;
 
 import static spark.Spark.halt;
 
-import java.util.Set;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
 
 import spark.Filter;
 import spark.Request;
 import spark.Response;
 
+/**
+ * Applies CORS headers from blocks prepared per allowed origin. Preflight responses carry
+ * Access-Control-Max-Age so browsers cache them, and are answered here before any rate limiting,
+ * authentication, audit or policy work.
+ */
 public class CORSFilter implements Filter {
-    private final Set<String> allowOrigins;
+    private static final HeaderBlock varyOrigin = new HeaderBlock("Vary", "Origin");
 
-    public CORSFilter(String... origins) {
-        this.allowOrigins = Set.of(origins);
+    private final Map<String, HeaderBlock> originHeaders = new HashMap<>();
+    private final HeaderBlock preflightHeaders;
+
+    public CORSFilter(Duration maxAge, String... origins) {
+        for (var origin : origins) {
+            originHeaders.put(origin, new HeaderBlock(
+                    "Vary", "Origin",
+                    "Access-Control-Allow-Origin", origin));
+        }
+        this.preflightHeaders = new HeaderBlock(
+                "Access-Control-Allow-Methods", "GET, POST, DELETE",
+                "Access-Control-Allow-Headers", "Content-Type, Authorization",
+                "Access-Control-Max-Age", String.valueOf(maxAge.toSeconds()));
     }
 
     @Override
     public void handle(Request request, Response response) throws Exception {
         var originHeader = request.headers("Origin");
-        response.header("Vary", "Origin");
-        if (originHeader != null && originHeader != "" && allowOrigins.contains(originHeader)) {
-            response.header("Access-Control-Allow-Origin", originHeader);
-            // response.header("Access-Control-Allow-Credentials", "true");
-        }
+        var headers = originHeader == null ? null : originHeaders.get(originHeader);
+        (headers == null ? varyOrigin : headers).applyTo(response);
 
         if (isPreflightRequest(request)) {
-            if (originHeader == null || !allowOrigins.contains(originHeader)) {
+            if (headers == null) {
                 halt(403);
             }
 
-            response.header("Access-Control-Allow-Methods", "GET, POST, DELETE");
-            response.header("Access-Control-Allow-Headers", "Content-Type, Authorization");
+            preflightHeaders.applyTo(response);
             halt(204);
         }
     }
 
     private boolean isPreflightRequest(Request request) {
         return "OPTIONS".equals(request.requestMethod()) &&
-                request.headers().contains("Access-Control-Request-Method");
+                request.headers("Access-Control-Request-Method") != null;
     }
 }
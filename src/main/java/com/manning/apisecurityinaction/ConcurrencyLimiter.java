@@ -0,0 +1,132 @@
+package com.manning.apisecurityinaction;
+
+import static spark.Spark.halt;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.manning.apisecurityinaction.controller.Metrics;
+
+import spark.Request;
+import spark.Response;
+
+/**
+ * Adaptive limit on in-flight requests. The limit follows the gradient between the minimum and the smoothed
+ * observed latency: it grows while latency stays near the minimum and shrinks once requests start queueing.
+ * Each request class keeps its own latencies, as a login hashing a password is always slower than a metrics
+ * read and would otherwise look like queueing. Requests over their class's share of the limit are rejected with
+ * 503, so logins are shed first and metrics reads last. Long-lived event streams are not counted.
+ */
+public class ConcurrencyLimiter {
+    private static final String START_ATTR_KEY = "concurrency_start";
+    private static final String PRIORITY_ATTR_KEY = "concurrency_priority";
+    private static final int MIN_RTT_WINDOW_SAMPLES = 500;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder rejected;
+    private final Latency[] latencies = new Latency[Priority.values().length];
+    private volatile double limit;
+
+    public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, Metrics metrics) {
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.rejected = metrics.counter("concurrency.rejected");
+        metrics.gauge("concurrency.limit", () -> (int) limit);
+        metrics.gauge("concurrency.in_flight", inFlight::get);
+        for (var i = 0; i < latencies.length; i++) {
+            latencies[i] = new Latency();
+        }
+    }
+
+    public void acquire(Request request, Response response) {
+        var priority = Priority.of(request);
+        if (priority == null) {
+            return;
+        }
+
+        if (inFlight.incrementAndGet() > limit * priority.share) {
+            inFlight.decrementAndGet();
+            rejected.increment();
+            response.header("Retry-After", "1");
+            halt(503);
+        }
+        request.attribute(PRIORITY_ATTR_KEY, priority);
+        request.attribute(START_ATTR_KEY, System.nanoTime());
+    }
+
+    public void release(Request request, Response response) {
+        Long start = request.attribute(START_ATTR_KEY);
+        if (start == null) {
+            return;
+        }
+
+        Priority priority = request.attribute(PRIORITY_ATTR_KEY);
+        request.raw().removeAttribute(START_ATTR_KEY);
+        inFlight.decrementAndGet();
+        update(latencies[priority.ordinal()], System.nanoTime() - start);
+    }
+
+    private synchronized void update(Latency latency, long rttNanos) {
+        var gradient = Math.max(0.5, Math.min(1.0, latency.add(rttNanos)));
+        var newLimit = limit * gradient + Math.sqrt(limit);
+        limit = Math.max(minLimit, Math.min(maxLimit, 0.8 * limit + 0.2 * newLimit));
+    }
+
+    /**
+     * The latencies of one request class. The minimum is taken over the current and the previous window of
+     * {@link #MIN_RTT_WINDOW_SAMPLES} samples, so it can rise when the baseline drifts upwards without ever
+     * falling back to a single sample.
+     */
+    private static class Latency {
+        private long windowMinNanos = Long.MAX_VALUE;
+        private long previousWindowMinNanos = Long.MAX_VALUE;
+        private int windowSamples;
+        private double smoothedRttNanos;
+
+        /**
+         * Records a sample and returns the ratio of the minimum to the smoothed latency.
+         */
+        double add(long rttNanos) {
+            if (++windowSamples > MIN_RTT_WINDOW_SAMPLES) {
+                previousWindowMinNanos = windowMinNanos;
+                windowMinNanos = Long.MAX_VALUE;
+                windowSamples = 1;
+            }
+            windowMinNanos = Math.min(windowMinNanos, rttNanos);
+            smoothedRttNanos = smoothedRttNanos == 0 ? rttNanos : 0.9 * smoothedRttNanos + 0.1 * rttNanos;
+
+            return Math.min(windowMinNanos, previousWindowMinNanos) / smoothedRttNanos;
+        }
+    }
+
+    private enum Priority {
+        CRITICAL(Double.MAX_VALUE),
+        READ(1.0),
+        WRITE(0.8),
+        LOGIN(0.5);
+
+        private final double share;
+
+        Priority(double share) {
+            this.share = share;
+        }
+
+        static Priority of(Request request) {
+            var method = request.requestMethod();
+            var path = request.pathInfo();
+            if (path.endsWith("/messages/stream")) {
+                return null;
+            }
+            if (path.equals("/metrics")) {
+                return CRITICAL;
+            }
+            if (method.equals("POST") && (path.equals("/sessions") || path.equals("/users"))) {
+                return LOGIN;
+            }
+            return method.equals("GET") || method.equals("HEAD") ? READ : WRITE;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.manning.apisecurityinaction;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.Collectors;
+
+import org.h2.api.Trigger;
+
+import com.manning.apisecurityinaction.controller.UserController.Permission;
+
+/**
+ * Keeps the effective_permissions table in step with user_roles, role_permissions, user_permissions,
+ * group_permissions and group_members. Only the (space, user) pairs touched by the changed row are recomputed,
+ * so permission lookups stay a single primary key read however many groups a user belongs to.
+ */
+public class EffectivePermissionsTrigger implements Trigger {
+    private static final String FIND_PERMS = "SELECT rp.perms " +
+            "FROM role_permissions rp JOIN user_roles ur ON rp.role_id = ur.role_id " +
+            "WHERE ur.space_id = ? AND ur.user_id = ? " +
+            "UNION ALL " +
+            "SELECT perms FROM user_permissions WHERE space_id = ? AND user_id = ? " +
+            "UNION ALL " +
+            "SELECT gp.perms " +
+            "FROM group_permissions gp JOIN group_members gm ON gp.group_id = gm.group_id " +
+            "WHERE gp.space_id = ? AND gm.user_id = ?";
+
+    private String tableName;
+
+    @Override
+    public void init(Connection conn, String schemaName, String triggerName, String tableName, boolean before,
+            int type) {
+        this.tableName = tableName.toUpperCase(Locale.ROOT);
+    }
+
+    @Override
+    public void fire(Connection conn, Object[] oldRow, Object[] newRow) throws SQLException {
+        var affected = new ArrayList<Object[]>();
+        for (var row : new Object[][] { oldRow, newRow }) {
+            if (row != null) {
+                affected.addAll(affectedPairs(conn, row));
+            }
+        }
+
+        for (var pair : affected) {
+            refresh(conn, pair[0], pair[1]);
+        }
+    }
+
+    private List<Object[]> affectedPairs(Connection conn, Object[] row) throws SQLException {
+        switch (tableName) {
+        case "USER_ROLES":
+        case "USER_PERMISSIONS":
+            return List.<Object[]>of(new Object[] { row[0], row[1] });
+        case "ROLE_PERMISSIONS":
+            var pairs = new ArrayList<Object[]>();
+            try (var stmt = conn.prepareStatement("SELECT space_id, user_id FROM user_roles WHERE role_id = ?")) {
+                stmt.setObject(1, row[0]);
+                try (var rows = stmt.executeQuery()) {
+                    while (rows.next()) {
+                        pairs.add(new Object[] { rows.getObject(1), rows.getObject(2) });
+                    }
+                }
+            }
+            return pairs;
+        case "GROUP_PERMISSIONS":
+            return findColumn(conn, "SELECT user_id FROM group_members WHERE group_id = ?", row[1]).stream()
+                    .map(userId -> new Object[] { row[0], userId })
+                    .collect(Collectors.toList());
+        case "GROUP_MEMBERS":
+            return findColumn(conn, "SELECT space_id FROM group_permissions WHERE group_id = ?", row[0]).stream()
+                    .map(spaceId -> new Object[] { spaceId, row[1] })
+                    .collect(Collectors.toList());
+        default:
+            throw new IllegalStateException("unexpected table " + tableName);
+        }
+    }
+
+    private static List<Object> findColumn(Connection conn, String sql, Object arg) throws SQLException {
+        try (var stmt = conn.prepareStatement(sql)) {
+            stmt.setObject(1, arg);
+            var values = new ArrayList<Object>();
+            try (var rows = stmt.executeQuery()) {
+                while (rows.next()) {
+                    values.add(rows.getObject(1));
+                }
+            }
+            return values;
+        }
+    }
+
+    /**
+     * Fills effective_permissions for every (space, user) pair with a grant, for databases created before the
+     * table and its triggers existed.
+     */
+    static void backfill(Connection conn) throws SQLException {
+        var pairs = new ArrayList<Object[]>();
+        try (var stmt = conn.prepareStatement("SELECT space_id, user_id FROM user_roles " +
+                "UNION SELECT space_id, user_id FROM user_permissions " +
+                "UNION SELECT gp.space_id, gm.user_id " +
+                "FROM group_permissions gp JOIN group_members gm ON gp.group_id = gm.group_id");
+                var rows = stmt.executeQuery()) {
+            while (rows.next()) {
+                pairs.add(new Object[] { rows.getObject(1), rows.getObject(2) });
+            }
+        }
+
+        for (var pair : pairs) {
+            refresh(conn, pair[0], pair[1]);
+        }
+    }
+
+    private static void refresh(Connection conn, Object spaceId, Object userId) throws SQLException {
+        var perms = Permission.fromString("");
+        try (var stmt = conn.prepareStatement(FIND_PERMS)) {
+            for (var i = 0; i < 3; i++) {
+                stmt.setObject(2 * i + 1, spaceId);
+                stmt.setObject(2 * i + 2, userId);
+            }
+            try (var rows = stmt.executeQuery()) {
+                while (rows.next()) {
+                    perms = perms.combine(Permission.fromString(rows.getString(1)));
+                }
+            }
+        }
+
+        var value = perms.toString();
+        var sql = value.isEmpty()
+                ? "DELETE FROM effective_permissions WHERE space_id = ? AND user_id = ?"
+                : "MERGE INTO effective_permissions(space_id, user_id, perms) KEY(space_id, user_id) " +
+                        "VALUES(?, ?, ?)";
+        try (var stmt = conn.prepareStatement(sql)) {
+            stmt.setObject(1, spaceId);
+            stmt.setObject(2, userId);
+            if (!value.isEmpty()) {
+                stmt.setString(3, value);
+            }
+            stmt.executeUpdate();
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public void remove() {
+    }
+}
@@ -0,0 +1,39 @@
+package com.manning.apisecurityinaction;
+
+import org.eclipse.jetty.http.HttpField;
+import org.eclipse.jetty.http.PreEncodedHttpField;
+
+import spark.Response;
+
+/**
+ * A fixed set of response headers encoded once up front. On Jetty the pre-encoded fields are put straight into
+ * the response header table, so they are not re-encoded for every response.
+ */
+public class HeaderBlock {
+    private final HttpField[] fields;
+
+    public HeaderBlock(String... namesAndValues) {
+        if (namesAndValues.length % 2 != 0) {
+            throw new IllegalArgumentException("headers must be given as name, value pairs");
+        }
+
+        this.fields = new HttpField[namesAndValues.length / 2];
+        for (var i = 0; i < fields.length; i++) {
+            fields[i] = new PreEncodedHttpField(namesAndValues[2 * i], namesAndValues[2 * i + 1]);
+        }
+    }
+
+    public void applyTo(Response response) {
+        var raw = response.raw();
+        if (raw instanceof org.eclipse.jetty.server.Response) {
+            var httpFields = ((org.eclipse.jetty.server.Response) raw).getHttpFields();
+            for (var field : fields) {
+                httpFields.put(field);
+            }
+        } else {
+            for (var field : fields) {
+                raw.setHeader(field.getName(), field.getValue());
+            }
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.manning.apisecurityinaction;
+
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTransientConnectionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+import org.h2.jdbcx.JdbcConnectionPool;
+
+import com.manning.apisecurityinaction.controller.Metrics;
+
+/**
+ * Wraps the H2 pool with metrics. When requests run on virtual threads, checkouts are gated by a semaphore sized
+ * to the pool, so callers wait on the semaphore rather than inside the pool's synchronized getConnection, which
+ * would pin a virtual thread. Platform threads get the pool's connections directly, without the proxy that
+ * releases the semaphore.
+ */
+public class InstrumentedDataSource implements DataSource {
+    private final JdbcConnectionPool pool;
+    private final Metrics.Timer acquireTimer;
+    private final Semaphore checkouts;
+
+    public InstrumentedDataSource(JdbcConnectionPool pool, String name, Metrics metrics, boolean gateCheckouts) {
+        this.pool = pool;
+        this.acquireTimer = metrics.timer("db." + name + ".acquire");
+        this.checkouts = gateCheckouts ? new Semaphore(pool.getMaxConnections(), true) : null;
+        metrics.gauge("db." + name + ".active", pool::getActiveConnections);
+        // H2's pool does not report its idle connections, only how many more it would hand out.
+        metrics.gauge("db." + name + ".available", () -> pool.getMaxConnections() - pool.getActiveConnections());
+        metrics.gauge("db." + name + ".max", pool::getMaxConnections);
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        var start = System.nanoTime();
+        try {
+            if (checkouts == null) {
+                return pool.getConnection();
+            }
+            acquirePermit();
+            Connection connection = null;
+            try {
+                connection = releaseOnClose(pool.getConnection());
+                return connection;
+            } finally {
+                if (connection == null) {
+                    checkouts.release();
+                }
+            }
+        } finally {
+            acquireTimer.record(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        var start = System.nanoTime();
+        try {
+            if (checkouts == null) {
+                return pool.getConnection(username, password);
+            }
+            acquirePermit();
+            Connection connection = null;
+            try {
+                connection = releaseOnClose(pool.getConnection(username, password));
+                return connection;
+            } finally {
+                if (connection == null) {
+                    checkouts.release();
+                }
+            }
+        } finally {
+            acquireTimer.record(System.nanoTime() - start);
+        }
+    }
+
+    private void acquirePermit() throws SQLException {
+        try {
+            if (!checkouts.tryAcquire(pool.getLoginTimeout(), TimeUnit.SECONDS)) {
+                throw new SQLTransientConnectionException("timed out waiting for a database connection");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLTransientConnectionException("interrupted waiting for a database connection", e);
+        }
+    }
+
+    private Connection releaseOnClose(Connection connection) {
+        var closed = new AtomicBoolean();
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[] { Connection.class }, (proxy, method, args) -> {
+                    if (method.getName().equals("close") && closed.compareAndSet(false, true)) {
+                        try {
+                            connection.close();
+                        } finally {
+                            checkouts.release();
+                        }
+                        return null;
+                    }
+
+                    try {
+                        return method.invoke(connection, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+    }
+
+    @Override
+    public PrintWriter getLogWriter() {
+        return pool.getLogWriter();
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) {
+        pool.setLogWriter(out);
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) {
+        pool.setLoginTimeout(seconds);
+    }
+
+    @Override
+    public int getLoginTimeout() {
+        return pool.getLoginTimeout();
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        return pool.getParentLogger();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        return pool.unwrap(iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return pool.isWrapperFor(iface);
+    }
+}
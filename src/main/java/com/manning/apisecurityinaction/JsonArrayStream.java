@@ -0,0 +1,136 @@
+package com.manning.apisecurityinaction;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.util.Iterator;
+import java.util.function.Function;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import spark.Response;
+
+/**
+ * Renders records as a JSON array a chunk at a time, into buffers that are reused for the whole response, so
+ * memory use does not grow with the number of records.
+ * <p>
+ * Routes call {@link #writeTo(Response)} rather than returning the stream. Spark only copies a returned body
+ * after the after filters have run and outside the exception mappers, so a record that failed to load there
+ * would leave a truncated array behind a 200 status.
+ */
+public class JsonArrayStream<T> extends InputStream {
+    private static final int CHUNK_CHARS = 8192;
+
+    private final Iterator<T> records;
+    private final Function<T, Object> toJson;
+    private final StringWriter chars = new StringWriter(CHUNK_CHARS);
+    private final CharsetEncoder encoder = UTF_8.newEncoder();
+    private ByteBuffer bytes = ByteBuffer.allocate(CHUNK_CHARS * 2).flip();
+    private boolean started;
+    private boolean first = true;
+    private boolean finished;
+
+    public JsonArrayStream(Iterator<T> records, Function<T, Object> toJson) {
+        this.records = records;
+        this.toJson = toJson;
+    }
+
+    /**
+     * Writes the whole array as the response body. A failure before anything has been sent discards the
+     * buffered output and is rethrown for the exception mappers to handle. Once part of the array has been sent
+     * the status can no longer change, so the connection is aborted instead of ending the response normally.
+     */
+    public void writeTo(Response response) {
+        var raw = response.raw();
+        response.type("application/json;charset=utf-8");
+        try {
+            transferTo(raw.getOutputStream());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (RuntimeException e) {
+            if (!raw.isCommitted()) {
+                raw.resetBuffer();
+            } else if (raw instanceof org.eclipse.jetty.server.Response) {
+                ((org.eclipse.jetty.server.Response) raw).getHttpChannel().abort(e);
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public int read() {
+        if (!bytes.hasRemaining() && !fill()) {
+            return -1;
+        }
+        return bytes.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) {
+        if (length == 0) {
+            return 0;
+        }
+        if (!bytes.hasRemaining() && !fill()) {
+            return -1;
+        }
+
+        var count = Math.min(length, bytes.remaining());
+        bytes.get(buffer, offset, count);
+        return count;
+    }
+
+    private boolean fill() {
+        if (finished) {
+            return false;
+        }
+
+        chars.getBuffer().setLength(0);
+        if (!started) {
+            chars.write('[');
+            started = true;
+        }
+        while (records.hasNext() && chars.getBuffer().length() < CHUNK_CHARS) {
+            if (!first) {
+                chars.write(',');
+            }
+            first = false;
+
+            var value = toJson.apply(records.next());
+            if (value instanceof JSONObject) {
+                ((JSONObject) value).write(chars);
+            } else if (value instanceof JSONArray) {
+                ((JSONArray) value).write(chars);
+            } else {
+                chars.write(JSONObject.valueToString(value));
+            }
+        }
+        if (!records.hasNext()) {
+            chars.write(']');
+            finished = true;
+        }
+
+        encode(CharBuffer.wrap(chars.getBuffer()));
+        return bytes.hasRemaining();
+    }
+
+    private void encode(CharBuffer input) {
+        encoder.reset();
+        bytes.clear();
+        while (encoder.encode(input, bytes, true).isOverflow()) {
+            var larger = ByteBuffer.allocate(bytes.capacity() * 2);
+            bytes.flip();
+            larger.put(bytes);
+            bytes = larger;
+        }
+        // UTF-8 keeps no state between characters, so flushing never writes anything.
+        encoder.flush(bytes);
+        bytes.flip();
+    }
+}
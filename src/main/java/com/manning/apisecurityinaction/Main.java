@@ -1,15 +1,13 @@
 package com.manning.apisecurityinaction;
 
+import static com.manning.apisecurityinaction.RouteTable.stage;
 import static spark.Spark.afterAfter;
 import static spark.Spark.before;
-import static spark.Spark.delete;
 import static spark.Spark.exception;
-import static spark.Spark.get;
 import static spark.Spark.halt;
 import static spark.Spark.internalServerError;
 import static spark.Spark.notFound;
 import static spark.Spark.port;
-import static spark.Spark.post;
 import static spark.Spark.secure;
 import static spark.Spark.staticFiles;
 
@@ -17,6 +15,8 @@ import java.io.FileInputStream;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.security.KeyStore;
+import java.time.Duration;
+import java.util.concurrent.Executors;
 
 import javax.crypto.SecretKey;
 
@@ -26,11 +26,22 @@ import org.h2.jdbcx.JdbcConnectionPool;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 import com.manning.apisecurityinaction.controller.AuditController;
+import com.manning.apisecurityinaction.controller.CachePolicy;
 import com.manning.apisecurityinaction.controller.CapabilityController;
+import com.manning.apisecurityinaction.controller.CompiledPolicyController;
 import com.manning.apisecurityinaction.controller.DroolsAccessController;
+import com.manning.apisecurityinaction.controller.IdAllocator;
+import com.manning.apisecurityinaction.controller.MessageArchive;
+import com.manning.apisecurityinaction.controller.MessageHub;
+import com.manning.apisecurityinaction.controller.MessageIndex;
+import com.manning.apisecurityinaction.controller.Metrics;
 import com.manning.apisecurityinaction.controller.Moderator;
+import com.manning.apisecurityinaction.controller.PolicyWatcher;
+import com.manning.apisecurityinaction.controller.RecentMessageCache;
+import com.manning.apisecurityinaction.controller.SpaceCache;
 import com.manning.apisecurityinaction.controller.SpaceController;
 import com.manning.apisecurityinaction.controller.TokenController;
 import com.manning.apisecurityinaction.controller.UserController;
@@ -42,9 +53,16 @@ import com.manning.apisecurityinaction.token.SecureTokenStore;
 
 import spark.Request;
 import spark.Response;
+import spark.embeddedserver.EmbeddedServers;
+import spark.embeddedserver.jetty.EmbeddedJettyFactory;
 
 public class Main {
     public static void main(String[] args) throws Exception {
+        var virtualThreads = "virtual".equals(System.getProperty("server.threads"));
+        if (virtualThreads) {
+            EmbeddedServers.add(EmbeddedServers.defaultIdentifier(),
+                    new EmbeddedJettyFactory().withThreadPool(new VirtualThreadPool()));
+        }
         port(args.length > 0 ? Integer.parseInt(args[0]) : spark.Service.SPARK_DEFAULT_PORT);
 
         staticFiles.location("/public");
@@ -53,19 +71,29 @@ public class Main {
                 "changeit",
                 null,
                 null);
-        var datasource = JdbcConnectionPool.create("jdbc:h2:mem:natter", "natter", "password");
-        var database = Database.forDataSource(datasource);
-        createTables(database);
-
-        datasource = JdbcConnectionPool.create("jdbc:h2:mem:natter", "natter_api_user", "password");
+        var metrics = new Metrics();
+        // One named daemon pool runs every background task, so none of them keeps the JVM alive on exit.
+        var background = Executors.newScheduledThreadPool(Integer.getInteger("background.threads", 4),
+                new ThreadFactoryBuilder().setNameFormat("natter-background-%d").setDaemon(true).build());
+        Runtime.getRuntime().addShutdownHook(new Thread(background::shutdownNow));
+        var jdbcUrl = jdbcUrl();
+        var adminDatasource = JdbcConnectionPool.create(jdbcUrl, "natter", "password");
+        var database = Database.forDataSource(adminDatasource);
+        Migrations.migrate(database);
+
+        var pool = JdbcConnectionPool.create(jdbcUrl, "natter_api_user", "password");
+        pool.setMaxConnections(Integer.getInteger("db.pool.size", 2 * Runtime.getRuntime().availableProcessors()));
+        pool.setLoginTimeout(Integer.getInteger("db.pool.timeout.seconds", 5));
+        var datasource = new InstrumentedDataSource(pool, "api", metrics, virtualThreads);
         database = Database.forDataSource(datasource);
+        var queries = new Queries(database, metrics);
 
         var keyPassword = System.getProperty("keystore.password",
                 "changeit").toCharArray();
         var keyStore = KeyStore.getInstance("PKCS12");
         keyStore.load(new FileInputStream("keystore.p12"), keyPassword);
 
-        // var allowlistStore = new DatabaseTokenStore(database);
+        // var allowlistStore = new DatabaseTokenStore(queries, background);
         var encKey = keyStore.getKey("aes-key", keyPassword);
         SecureTokenStore tokenStore = new EncryptedJwtTokenStore((SecretKey) encKey, "https://localhost:4567");
 
@@ -82,90 +110,165 @@ public class Main {
         // SecureTokenStore tokenStore = new OAuth2TokenStore(introspectionUri,
         // revocationUri, "test", "password");
 
-        var dbTokenStore = new DatabaseTokenStore(database);
+        var dbTokenStore = new DatabaseTokenStore(queries, background);
         var capabilityStore = MacaroonTokenStore.wrap(dbTokenStore, macKey);
 
         var tokenCtrl = new TokenController(tokenStore);
         var capabilityCtrl = new CapabilityController(capabilityStore);
-        var userCtrl = new UserController(database);
-        var auditCtrl = new AuditController(database);
-        var spaceCtrl = new SpaceController(database, capabilityCtrl);
-        var moderatorCtrl = new Moderator(database);
-        var droolCtrl = new DroolsAccessController();
-
-        before(new CORSFilter("https://localhost:9999"));
-
-        var rateLimiter = RateLimiter.create(2);
-        before((request, response) -> {
-            if (!rateLimiter.tryAcquire()) {
-                response.header("Retry-After", "2");
-            }
-        });
+        var spaceIds = new IdAllocator(queries, "space_id_seq", Integer.getInteger("ids.space.block", 20),
+                background, metrics);
+        var msgIds = new IdAllocator(queries, "msg_id_seq", Integer.getInteger("ids.msg.block", 200),
+                background, metrics);
+        var auditIds = new IdAllocator(queries, "audit_id_seq", Integer.getInteger("ids.audit.block", 1000),
+                background, metrics);
+
+        var userCtrl = new UserController(queries);
+        var auditCtrl = new AuditController(queries, auditIds, background);
+        var messageHub = new MessageHub(100, 256);
+        // Ids start again from 1 with each in-memory database, so an archive kept from an earlier run would serve
+        // its messages to the new spaces that reuse their ids. Only a file database archives; an in-memory one
+        // gets an empty archive of its own.
+        var persistent = System.getProperty("db.file") != null;
+        var archiveDir = persistent ? Paths.get(System.getProperty("archive.dir", "archive"))
+                : Files.createTempDirectory("natter-archive");
+        var messageArchive = new MessageArchive(queries, archiveDir);
+        if (persistent) {
+            messageArchive.startArchiver(background, Duration.ofDays(Long.getLong("archive.age.days", 30)));
+        } else {
+            archiveDir.toFile().deleteOnExit();
+            archiveDir.resolve(".lock").toFile().deleteOnExit();
+        }
+        var recentMessages = new RecentMessageCache(queries, messageArchive, 256, 16 * 1024 * 1024);
+        metrics.gauge("stream.subscribers", messageHub::subscriberCount);
+        metrics.gauge("recent_messages.bytes", recentMessages::usedBytes);
+        var messageIndex = new MessageIndex(queries, messageArchive,
+                Long.getLong("search.index.max.mb", 64) * 1024 * 1024);
+        metrics.gauge("search.index.bytes", messageIndex::usedBytes);
+        var spaceCache = new SpaceCache(10_000, 1_000_000);
+        spaceCache.loadNames(queries);
+        metrics.gauge("spaces.cache.size", spaceCache::size);
+        metrics.gauge("spaces.cache.hit_ratio", spaceCache::hitRate);
+        var spaceCtrl = new SpaceController(queries, capabilityCtrl, tokenCtrl,
+                Duration.ofMinutes(Long.getLong("stream.max.lifetime.minutes", 60)), messageHub, recentMessages,
+                spaceIds, msgIds, messageIndex, spaceCache, messageArchive);
+        var moderatorCtrl = new Moderator(queries, recentMessages, messageIndex, messageArchive, background);
+        var policyStart = System.nanoTime();
+        var allowDecisionChanges = Boolean.getBoolean("abac.reload.allow.changes");
+        var abacCtrl = "compiled".equals(System.getProperty("abac.engine"))
+                ? CompiledPolicyController.fromClasspath("/accessrules.policy", allowDecisionChanges)
+                : new DroolsAccessController(Boolean.getBoolean("abac.decision.cache"), allowDecisionChanges);
+        var policyLoadMillis = (System.nanoTime() - policyStart) / 1_000_000;
+        metrics.gauge("abac.policy.load_ms", () -> policyLoadMillis);
+        var policyFile = System.getProperty("abac.policy.file");
+        if (policyFile != null) {
+            new PolicyWatcher(Paths.get(policyFile), abacCtrl, metrics).start(background, Duration.ofSeconds(2));
+        }
+        metrics.gauge("abac.evaluated", abacCtrl::evaluatedCount);
+        metrics.gauge("abac.skipped", abacCtrl::skippedCount);
+        metrics.gauge("jvm.heap.used_bytes",
+                () -> Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory());
+        var cachePolicy = new CachePolicy();
+
+        // Set before the route runs, as routes that stream their body commit the headers themselves.
+        var securityHeaders = new HeaderBlock(
+                "Server", "",
+                "X-Content-Type-Options", "nonsniff",
+                "X-Frame-Options", "DENY",
+                "X-XSS-Protection", "0",
+                "Content-Security-Policy", "default-src 'none'; frame-ancestors 'none'; sandbox",
+                "Strict-Transport-Sercurity", "max-age=31536000");
+        before((request, response) -> securityHeaders.applyTo(response));
+        before(new CORSFilter(Duration.ofSeconds(Long.getLong("cors.max.age.seconds", 600)),
+                "https://localhost:9999"));
+
+        var rateLimit = Double.parseDouble(System.getProperty("rate.limit", "20"));
+        var loginRateLimit = Double.parseDouble(System.getProperty("rate.limit.login", "2"));
+        var rateLimiter = new RateLimitFilter(rateLimit, Integer.getInteger("rate.limit.burst", 40), metrics,
+                background)
+                .limit("POST", "/sessions", loginRateLimit, 5)
+                .limit("POST", "/users", loginRateLimit, 5);
+        before(rateLimiter);
         before((request, response) -> {
             if (request.requestMethod().equals("POST") && !request.contentType().equals("application/json")) {
                 halt(415, new JSONObject().put("error", "Only support application/json").toString());
             }
         });
-        before(userCtrl::authenticate);
-        before(tokenCtrl::validateToken);
-        before(auditCtrl::logRequest);
-        before(droolCtrl::enforcePolicy);
-
-        before("/sessions", userCtrl.requireScope("POST", "full_access"));
-        before("/sessions", userCtrl::requireAuthentication);
-        post("/sessions", tokenCtrl::login);
-        delete("/logout", tokenCtrl::logout);
-
-        get("/logs", auditCtrl::readAuditLogs);
-
-        post("/users", userCtrl::registerUser);
-
-        before("/spaces", userCtrl::requireAuthentication);
-        before("/spaces", userCtrl.requireScope("POST", "create_space"));
-        post("/spaces", spaceCtrl::createSpace);
-
-        before("/spaces/:spaceId", userCtrl::lookupPermissions);
-        before("/spaces/:spaceId", capabilityCtrl::lookupPermissions);
-        before("/spaces/:spaceId", userCtrl.requireScope("GET", "read_space"));
-        before("/spaces/:spaceId", userCtrl.requirePermission("GET",
-                Permission.read));
-        get("/spaces/:spaceId", spaceCtrl::readSpace);
-
-        before("/spaces/:spaceId/*", userCtrl::lookupPermissions);
-        before("/spaces/:spaceId/*", capabilityCtrl::lookupPermissions);
-
-        before("/spaces/:spaceId/messages", userCtrl.requireScope("POST", "post_message"));
-        before("/spaces/:spaceId/messages", userCtrl.requirePermission("POST", Permission.write));
-        post("/spaces/:spaceId/messages", spaceCtrl::postMessage);
-
-        before("/spaces/:spaceId/messages*", userCtrl.requireScope("GET", "read_message"));
-        before("/spaces/:spaceId/messages", userCtrl.requirePermission("GET", Permission.read));
-        get("/spaces/:spaceId/messages", spaceCtrl::findMessages);
-        before("/spaces/:spaceId/messages/*", userCtrl.requirePermission("GET", Permission.read));
-        get("/spaces/:spaceId/messages/:msgId", spaceCtrl::readMessage);
-
-        before("/spaces/:spaceId/messages/*", userCtrl.requireScope("DELETE", "delete_message"));
-        before("/spaces/:spaceId/messages/*", userCtrl.requirePermission("DELETE", Permission.delete));
-        delete("/spaces/:spaceId/messages/:msgId", moderatorCtrl::deletePost);
-
-        before("/spaces/:spaceId/members", userCtrl.requireScope("POST", "add_member"));
-        before("/spaces/:spaceId/members", userCtrl.requirePermission("POST",
-                Permission.full));
-        post("/spaces/:spaceId/members", spaceCtrl::addMember);
-
-        before("/capabilities", userCtrl::requireAuthentication);
-        post("/capabilities", capabilityCtrl::share);
-
+        var concurrencyLimiter = new ConcurrencyLimiter(Integer.getInteger("concurrency.limit", 20),
+                Integer.getInteger("concurrency.limit.min", 4), Integer.getInteger("concurrency.limit.max", 200),
+                metrics);
+        before(concurrencyLimiter::acquire);
+        var routes = new RouteTable(metrics);
+        var audited = routes.with(
+                stage("audit", auditCtrl::logRequest),
+                stage("abac", abacCtrl::enforcePolicy));
+        var api = routes.with(
+                stage("authenticate", userCtrl::authenticate),
+                stage("validate_token", tokenCtrl::validateToken),
+                stage("audit", auditCtrl::logRequest),
+                stage("abac", abacCtrl::enforcePolicy));
+        var authenticated = api.with(stage("require_authentication", userCtrl::requireAuthentication));
+        var space = api.with(
+                stage("user_permissions", userCtrl::lookupPermissions),
+                stage("capability_permissions", capabilityCtrl::lookupPermissions));
+
+        api.route("POST", "/sessions", tokenCtrl::login,
+                stage("scope", userCtrl.requireScope("POST", "full_access")),
+                stage("require_authentication", userCtrl::requireAuthentication));
+        api.route("DELETE", "/logout", tokenCtrl::logout);
+
+        api.route("GET", "/logs", auditCtrl::readAuditLogs);
+        api.route("GET", "/logs/stats", auditCtrl::readAuditStats);
+        api.route("GET", "/metrics", metrics::readMetrics);
+
+        audited.route("POST", "/users", userCtrl::registerUser);
+
+        authenticated.route("POST", "/spaces", spaceCtrl::createSpace,
+                stage("scope", userCtrl.requireScope("POST", "create_space")));
+
+        space.route("GET", "/spaces/:spaceId", spaceCtrl::readSpace,
+                stage("scope", userCtrl.requireScope("GET", "read_space")),
+                stage("permission", userCtrl.requirePermission("GET", Permission.read)));
+
+        space.route("POST", "/spaces/:spaceId/messages", spaceCtrl::postMessage,
+                stage("scope", userCtrl.requireScope("POST", "post_message")),
+                stage("permission", userCtrl.requirePermission("POST", Permission.write)));
+        space.route("GET", "/spaces/:spaceId/messages", spaceCtrl::findMessages,
+                stage("scope", userCtrl.requireScope("GET", "read_message")),
+                stage("permission", userCtrl.requirePermission("GET", Permission.read)));
+        space.route("DELETE", "/spaces/:spaceId/messages", moderatorCtrl::deletePosts,
+                stage("scope", userCtrl.requireScope("DELETE", "delete_message")),
+                stage("permission", userCtrl.requirePermission("DELETE", Permission.delete)));
+        space.route("GET", "/spaces/:spaceId/messages/stream", spaceCtrl::streamMessages,
+                stage("scope", userCtrl.requireScope("GET", "read_message")),
+                stage("parent_capability", capabilityCtrl.lookupParentPermissions(Permission.read)),
+                stage("permission", userCtrl.requirePermission("GET", Permission.read)));
+        space.route("GET", "/spaces/:spaceId/messages/search", spaceCtrl::searchMessages,
+                stage("scope", userCtrl.requireScope("GET", "read_message")),
+                stage("parent_capability", capabilityCtrl.lookupParentPermissions(Permission.read)),
+                stage("permission", userCtrl.requirePermission("GET", Permission.read)));
+        space.route("GET", "/spaces/:spaceId/messages/:msgId", spaceCtrl::readMessage,
+                stage("scope", userCtrl.requireScope("GET", "read_message")),
+                stage("permission", userCtrl.requirePermission("GET", Permission.read)),
+                stage("cacheable", cachePolicy.cacheable("GET", Duration.ofMinutes(10))));
+        space.route("DELETE", "/spaces/:spaceId/messages/:msgId", moderatorCtrl::deletePost,
+                stage("scope", userCtrl.requireScope("DELETE", "delete_message")),
+                stage("permission", userCtrl.requirePermission("DELETE", Permission.delete)));
+
+        space.route("POST", "/spaces/:spaceId/members", spaceCtrl::addMember,
+                stage("scope", userCtrl.requireScope("POST", "add_member")),
+                stage("permission", userCtrl.requirePermission("POST", Permission.full)));
+        space.route("POST", "/spaces/:spaceId/groups", spaceCtrl::addGroup,
+                stage("scope", userCtrl.requireScope("POST", "add_member")),
+                stage("permission", userCtrl.requirePermission("POST", Permission.full)));
+
+        authenticated.route("POST", "/capabilities", capabilityCtrl::share);
+
+        afterAfter(concurrencyLimiter::release);
         afterAfter((request, response) -> {
-            response.header("Server", "");
             response.type("application/json;charset=utf-8");
-            response.header("X-Content-Type-Options", "nonsniff");
-            response.header("X-Frame-Options", "DENY");
-            response.header("Cache-Control", "no-store");
-            response.header("X-XSS-Protection", "0");
-            response.header("Content-Security-Policy", "default-src 'none'; frame-ancestors 'none'; sandbox");
-            response.header("Strict-Transport-Sercurity", "max-age=31536000");
+            response.header("Cache-Control", cachePolicy.cacheControl(request, response));
         });
+        afterAfter(rateLimiter::recordFailure);
         afterAfter(auditCtrl::logResponse);
 
         internalServerError(new JSONObject().put("error", "internal server error").toString());
@@ -184,8 +287,15 @@ public class Main {
                 .put("error", ex.getMessage()).toString());
     }
 
-    private static void createTables(Database database) throws Exception {
-        var path = Paths.get(Main.class.getResource("/schema.sql").toURI());
-        database.update(Files.readString(path));
+    private static String jdbcUrl() {
+        var file = System.getProperty("db.file");
+        var queryCacheSize = ";QUERY_CACHE_SIZE=" + Integer.getInteger("db.query.cache", 64);
+        if (file == null) {
+            return "jdbc:h2:mem:natter" + queryCacheSize;
+        }
+
+        return "jdbc:h2:file:" + file + queryCacheSize +
+                ";CACHE_SIZE=" + Integer.getInteger("db.cache.kb", 64 * 1024) +
+                ";WRITE_DELAY=" + Integer.getInteger("db.write.delay.ms", 500);
     }
 }
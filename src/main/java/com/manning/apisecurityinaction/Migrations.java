@@ -0,0 +1,89 @@
+package com.manning.apisecurityinaction;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+
+import org.dalesbred.Database;
+
+/**
+ * Creates or upgrades the database schema. A new database gets the whole of schema.sql. A database created by an
+ * earlier version has its schema_version table, or version 0 when it predates that table, and gets each later
+ * migration in order. The version is recorded after each one, so a failed upgrade resumes from the migration that
+ * failed.
+ * <p>
+ * A schema change goes into schema.sql and into a new migration at the end of {@link #MIGRATIONS}, so that both
+ * paths end with the same schema.
+ */
+public class Migrations {
+    private static final List<Migration> MIGRATIONS = List.of(
+            script("001_messages_keyset_index.sql"),
+            script("002_audit_rollups.sql"),
+            script("003_soft_delete_messages.sql"),
+            // group_permissions.user_id always held group ids, and carried a foreign key to users that rejected
+            // any group that was not also a user name.
+            database -> database.findOptional(String.class, "SELECT CONSTRAINT_NAME " +
+                    "FROM INFORMATION_SCHEMA.CONSTRAINTS " +
+                    "WHERE TABLE_NAME = 'GROUP_PERMISSIONS' AND CONSTRAINT_TYPE = 'REFERENTIAL' " +
+                    "AND COLUMN_LIST = 'USER_ID'")
+                    .ifPresent(name -> database.update("ALTER TABLE group_permissions DROP CONSTRAINT " + name)),
+            script("004_effective_permissions.sql"),
+            database -> database.withVoidTransaction(tx ->
+                    EffectivePermissionsTrigger.backfill(tx.getConnection())));
+
+    public static void migrate(Database database) {
+        var exists = database.findUniqueInt("SELECT COUNT(*) FROM INFORMATION_SCHEMA.TABLES " +
+                "WHERE TABLE_SCHEMA = 'PUBLIC' AND TABLE_NAME = 'SPACES'") > 0;
+        if (!exists) {
+            database.withVoidTransaction(tx -> {
+                database.update(read("/schema.sql"));
+                database.update("CREATE TABLE schema_version (version INT NOT NULL)");
+                database.update("INSERT INTO schema_version (version) VALUES (?)", MIGRATIONS.size());
+            });
+            return;
+        }
+
+        database.update("CREATE TABLE IF NOT EXISTS schema_version (version INT NOT NULL)");
+        if (database.findUniqueInt("SELECT COUNT(*) FROM schema_version") == 0) {
+            database.update("INSERT INTO schema_version (version) VALUES (0)");
+        }
+
+        var version = database.findUniqueInt("SELECT version FROM schema_version");
+        if (version > MIGRATIONS.size()) {
+            throw new IllegalStateException("database schema version " + version + " is newer than this server");
+        }
+        for (var i = version; i < MIGRATIONS.size(); i++) {
+            var migration = MIGRATIONS.get(i);
+            var next = i + 1;
+            database.withVoidTransaction(tx -> {
+                migration.apply(database);
+                database.update("UPDATE schema_version SET version = ?", next);
+            });
+        }
+    }
+
+    public static int latestVersion() {
+        return MIGRATIONS.size();
+    }
+
+    private static Migration script(String name) {
+        return database -> database.update(read("/migrations/" + name));
+    }
+
+    private static String read(String resource) {
+        try (var in = Migrations.class.getResourceAsStream(resource)) {
+            if (in == null) {
+                throw new IllegalStateException("missing resource " + resource);
+            }
+            return new String(in.readAllBytes(), UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    interface Migration {
+        void apply(Database database);
+    }
+}
@@ -0,0 +1,116 @@
+package com.manning.apisecurityinaction;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Supplier;
+
+import org.dalesbred.Database;
+import org.dalesbred.result.ResultSetProcessor;
+import org.dalesbred.result.RowMapper;
+import org.dalesbred.transaction.TransactionCallback;
+import org.dalesbred.transaction.VoidTransactionCallback;
+
+import com.manning.apisecurityinaction.controller.Metrics;
+
+/**
+ * Named SQL statements shared by the controllers. Every execution is counted and timed under
+ * {@code sql.<name>} in {@link Metrics}. Statements are checked against the schema when they are defined,
+ * and H2 reuses the parsed statement per connection through its query cache (see QUERY_CACHE_SIZE in
+ * {@link Main}).
+ */
+public class Queries {
+    private final Database database;
+    private final Metrics metrics;
+
+    public Queries(Database database, Metrics metrics) {
+        this.database = database;
+        this.metrics = metrics;
+    }
+
+    public Query define(String name, String sql) {
+        database.withVoidTransaction(tx -> tx.getConnection().prepareStatement(sql).close());
+        return new Query(name, sql);
+    }
+
+    /**
+     * Defines a statement whose text varies between calls, such as an IN list. It is timed under the same name
+     * but not checked up front.
+     */
+    public Query dynamic(String name, String sql) {
+        return new Query(name, sql);
+    }
+
+    public <T> T withTransaction(TransactionCallback<T> callback) {
+        return database.withTransaction(callback);
+    }
+
+    public void withVoidTransaction(VoidTransactionCallback callback) {
+        database.withVoidTransaction(callback);
+    }
+
+    public class Query {
+        private final String sql;
+        private final Metrics.Timer timer;
+
+        private Query(String name, String sql) {
+            this.sql = sql;
+            this.timer = metrics.timer("sql." + name);
+        }
+
+        public <T> List<T> findAll(RowMapper<T> mapper, Object... args) {
+            return timed(() -> database.findAll(mapper, sql, args));
+        }
+
+        public <T> List<T> findAll(Class<T> cls, Object... args) {
+            return timed(() -> database.findAll(cls, sql, args));
+        }
+
+        public <T> T findUnique(Class<T> cls, Object... args) {
+            return timed(() -> database.findUnique(cls, sql, args));
+        }
+
+        public <T> Optional<T> findOptional(RowMapper<T> mapper, Object... args) {
+            return timed(() -> database.findOptional(mapper, sql, args));
+        }
+
+        public <T> Optional<T> findOptional(Class<T> cls, Object... args) {
+            return timed(() -> database.findOptional(cls, sql, args));
+        }
+
+        public long findUniqueLong(Object... args) {
+            return timed(() -> database.findUniqueLong(sql, args));
+        }
+
+        public int findUniqueInt(Object... args) {
+            return timed(() -> database.findUniqueInt(sql, args));
+        }
+
+        public <T> T executeQuery(ResultSetProcessor<T> processor, Object... args) {
+            return timed(() -> database.executeQuery(processor, sql, args));
+        }
+
+        public int update(Object... args) {
+            return timed(() -> database.update(sql, args));
+        }
+
+        public void updateUnique(Object... args) {
+            timed(() -> {
+                database.updateUnique(sql, args);
+                return null;
+            });
+        }
+
+        public int[] updateBatch(List<? extends List<?>> argumentLists) {
+            return timed(() -> database.updateBatch(sql, argumentLists));
+        }
+
+        private <T> T timed(Supplier<T> statement) {
+            var start = System.nanoTime();
+            try {
+                return statement.get();
+            } finally {
+                timer.record(System.nanoTime() - start);
+            }
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.manning.apisecurityinaction;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static spark.Spark.halt;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.manning.apisecurityinaction.controller.Metrics;
+
+import spark.Filter;
+import spark.Request;
+import spark.Response;
+
+/**
+ * Per-client token buckets, checked before authentication so that rejected requests never reach scrypt or the
+ * database. Every request draws from its client IP's bucket. Requests that claim a user with Basic
+ * authentication are also refused while that user has used up the failures allowed from their IP. Only
+ * {@link #recordFailure} draws from that bucket, so neither successful logins nor clients on other addresses can
+ * lock a user out. Buckets are kept as a single theoretical arrival time (GCRA) updated with compare-and-set,
+ * and buckets that have refilled completely are evicted.
+ */
+public class RateLimitFilter implements Filter {
+    private static final long EVICTED = Long.MIN_VALUE;
+
+    private final List<Limit> limits = new ArrayList<>();
+    private final Limit defaultLimit;
+    private final ConcurrentMap<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+    private final LongAdder rejected;
+
+    public RateLimitFilter(double permitsPerSecond, int burst, Metrics metrics,
+            ScheduledExecutorService scheduler) {
+        this.defaultLimit = new Limit("default", null, "", permitsPerSecond, burst);
+        this.rejected = metrics.counter("rate_limit.rejected");
+        metrics.gauge("rate_limit.buckets", buckets::size);
+
+        scheduler.scheduleAtFixedRate(this::evictIdle, 1, 1, TimeUnit.MINUTES);
+    }
+
+    public RateLimitFilter limit(String method, String pathPrefix, double permitsPerSecond, int burst) {
+        limits.add(new Limit(method + " " + pathPrefix, method, pathPrefix, permitsPerSecond, burst));
+        return this;
+    }
+
+    @Override
+    public void handle(Request request, Response response) {
+        var limit = limitFor(request);
+        var now = System.nanoTime();
+
+        var waitNanos = acquire(limit, "ip:" + request.ip(), now);
+        var user = claimedUser(request);
+        var failures = user == null ? null : buckets.get(limit.name + "|" + failuresKey(request, user));
+        if (waitNanos == 0 && failures != null) {
+            waitNanos = limit.waitNanos(failures.get(), now);
+        }
+
+        if (waitNanos > 0) {
+            rejected.increment();
+            response.header("Retry-After", String.valueOf(TimeUnit.NANOSECONDS.toSeconds(waitNanos) + 1));
+            halt(429);
+        }
+    }
+
+    /**
+     * Charges a failed Basic authentication to the bucket of the claimed user and the client IP. Registered as
+     * an afterAfter filter.
+     */
+    public void recordFailure(Request request, Response response) {
+        var user = claimedUser(request);
+        if (response.status() == 401 && user != null) {
+            acquire(limitFor(request), failuresKey(request, user), System.nanoTime());
+        }
+    }
+
+    private static String failuresKey(Request request, String user) {
+        return "user:" + user + "@" + request.ip();
+    }
+
+    private long acquire(Limit limit, String client, long now) {
+        while (true) {
+            var bucket = bucket(limit, client, now);
+            var waitNanos = limit.tryAcquire(bucket, now);
+            if (waitNanos >= 0) {
+                return waitNanos;
+            }
+            buckets.remove(limit.name + "|" + client, bucket);
+        }
+    }
+
+    private Limit limitFor(Request request) {
+        for (var limit : limits) {
+            if (limit.method.equalsIgnoreCase(request.requestMethod())
+                    && request.pathInfo().startsWith(limit.pathPrefix)) {
+                return limit;
+            }
+        }
+        return defaultLimit;
+    }
+
+    private AtomicLong bucket(Limit limit, String client, long now) {
+        return buckets.computeIfAbsent(limit.name + "|" + client, k -> new AtomicLong(now));
+    }
+
+    private static String claimedUser(Request request) {
+        var authHeader = request.headers("Authorization");
+        if (authHeader == null || !authHeader.startsWith("Basic ")) {
+            return null;
+        }
+
+        try {
+            var credentials = new String(Base64.getDecoder().decode(authHeader.substring(6)), UTF_8);
+            var colon = credentials.indexOf(':');
+            return colon < 0 ? null : credentials.substring(0, colon);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private void evictIdle() {
+        var now = System.nanoTime();
+        for (var entry : buckets.entrySet()) {
+            var bucket = entry.getValue();
+            var arrival = bucket.get();
+            // Marked before removal, so a request still holding the bucket retries with a new one rather than
+            // updating a bucket that has left the map.
+            if (arrival != EVICTED && arrival - now < 0 && bucket.compareAndSet(arrival, EVICTED)) {
+                buckets.remove(entry.getKey(), bucket);
+            }
+        }
+    }
+
+    private static class Limit {
+        private final String name;
+        private final String method;
+        private final String pathPrefix;
+        private final long intervalNanos;
+        private final long burstNanos;
+
+        private Limit(String name, String method, String pathPrefix, double permitsPerSecond, int burst) {
+            this.name = name;
+            this.method = method;
+            this.pathPrefix = pathPrefix;
+            this.intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond);
+            this.burstNanos = intervalNanos * burst;
+        }
+
+        /**
+         * Takes one permit, returning 0 on success, how long the client must wait before retrying, or -1 when the
+         * bucket has been evicted.
+         */
+        long tryAcquire(AtomicLong bucket, long now) {
+            while (true) {
+                var arrival = bucket.get();
+                if (arrival == EVICTED) {
+                    return -1;
+                }
+                var waitNanos = waitNanos(arrival, now);
+                if (waitNanos > 0) {
+                    return waitNanos;
+                }
+                if (bucket.compareAndSet(arrival, Math.max(arrival - now, 0) + now + intervalNanos)) {
+                    return 0;
+                }
+            }
+        }
+
+        /**
+         * Returns how long a client must wait before a permit is available, without taking one.
+         */
+        long waitNanos(long arrival, long now) {
+            if (arrival == EVICTED) {
+                return 0;
+            }
+            var next = Math.max(arrival - now, 0) + now + intervalNanos;
+            return Math.max(next - now - burstNanos, 0);
+        }
+    }
+}
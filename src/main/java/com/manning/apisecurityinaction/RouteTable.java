@@ -0,0 +1,120 @@
+package com.manning.apisecurityinaction;
+
+import static spark.Spark.delete;
+import static spark.Spark.get;
+import static spark.Spark.post;
+
+import java.util.Arrays;
+import java.util.stream.Stream;
+
+import com.manning.apisecurityinaction.controller.Metrics;
+
+import spark.Filter;
+import spark.Request;
+import spark.Response;
+import spark.Route;
+
+/**
+ * Declares each API route together with the ordered stages it needs, such as authentication, auditing and
+ * permission checks. Each route is registered with Spark once as a single pipeline, so requests only run the
+ * stages of the route they match. The time spent in every stage and handler is recorded under
+ * {@code route.<method> <path>.<stage>} in {@link Metrics}.
+ */
+public class RouteTable {
+    public static final String ROUTE_ATTR_KEY = "route";
+
+    private final Metrics metrics;
+    private final Stage[] prefix;
+
+    public RouteTable(Metrics metrics) {
+        this(metrics, new Stage[0]);
+    }
+
+    private RouteTable(Metrics metrics, Stage[] prefix) {
+        this.metrics = metrics;
+        this.prefix = prefix;
+    }
+
+    public static Stage stage(String name, Filter filter) {
+        return new Stage(name, filter);
+    }
+
+    /**
+     * Returns a table whose routes run these stages after the ones already shared by this table.
+     */
+    public RouteTable with(Stage... stages) {
+        return new RouteTable(metrics, concat(prefix, stages));
+    }
+
+    public RouteTable route(String method, String path, Route handler, Stage... stages) {
+        var pipeline = new Pipeline(method + " " + path, path, concat(prefix, stages), handler, metrics);
+        switch (method) {
+        case "GET":
+            get(path, pipeline);
+            break;
+        case "POST":
+            post(path, pipeline);
+            break;
+        case "DELETE":
+            delete(path, pipeline);
+            break;
+        default:
+            throw new IllegalArgumentException("unsupported method " + method);
+        }
+        return this;
+    }
+
+    private static Stage[] concat(Stage[] first, Stage[] second) {
+        return Stream.concat(Arrays.stream(first), Arrays.stream(second)).toArray(Stage[]::new);
+    }
+
+    public static class Stage {
+        private final String name;
+        private final Filter filter;
+
+        private Stage(String name, Filter filter) {
+            this.name = name;
+            this.filter = filter;
+        }
+    }
+
+    private static class Pipeline implements Route {
+        private final String path;
+        private final Filter[] filters;
+        private final Metrics.Timer[] timers;
+        private final Route handler;
+        private final Metrics.Timer handlerTimer;
+
+        private Pipeline(String name, String path, Stage[] stages, Route handler, Metrics metrics) {
+            this.path = path;
+            this.filters = new Filter[stages.length];
+            this.timers = new Metrics.Timer[stages.length];
+            for (var i = 0; i < stages.length; i++) {
+                filters[i] = stages[i].filter;
+                timers[i] = metrics.timer("route." + name + "." + stages[i].name);
+            }
+            this.handler = handler;
+            this.handlerTimer = metrics.timer("route." + name + ".handler");
+        }
+
+        @Override
+        public Object handle(Request request, Response response) throws Exception {
+            request.attribute(ROUTE_ATTR_KEY, path);
+            for (var i = 0; i < filters.length; i++) {
+                var start = System.nanoTime();
+                try {
+                    filters[i].handle(request, response);
+                } finally {
+                    timers[i].record(System.nanoTime() - start);
+                }
+            }
+
+            var start = System.nanoTime();
+            try {
+                return handler.handle(request, response);
+            } finally {
+                handlerTimer.record(System.nanoTime() - start);
+            }
+        }
+    }
+}
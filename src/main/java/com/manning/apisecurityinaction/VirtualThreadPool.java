@@ -0,0 +1,58 @@
+package com.manning.apisecurityinaction;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jetty.util.thread.ThreadPool;
+
+/**
+ * Jetty thread pool that runs every task on its own virtual thread. The project targets Java 11, so the
+ * virtual-thread executor is looked up reflectively and this pool can only be used on a Java 21+ runtime.
+ */
+public class VirtualThreadPool implements ThreadPool {
+    private final ExecutorService executor;
+    private final AtomicInteger running = new AtomicInteger();
+
+    public VirtualThreadPool() {
+        try {
+            this.executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("virtual threads require Java 21 or later", e);
+        }
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        executor.execute(() -> {
+            running.incrementAndGet();
+            try {
+                task.run();
+            } finally {
+                running.decrementAndGet();
+            }
+        });
+    }
+
+    @Override
+    public void join() throws InterruptedException {
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public int getThreads() {
+        return running.get();
+    }
+
+    @Override
+    public int getIdleThreads() {
+        return 0;
+    }
+
+    @Override
+    public boolean isLowOnThreads() {
+        return false;
+    }
+}
@@ -5,12 +5,28 @@ import static spark.Spark.halt;
 import java.time.LocalTime;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
 
 import spark.Request;
 import spark.Response;
 
 public abstract class ABACAccessController {
+    private final LongAdder evaluated = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+
     public void enforcePolicy(Request request, Response response) {
+        if (!mayApply(request.requestMethod(), request.pathInfo())) {
+            skipped.increment();
+            return;
+        }
+        evaluated.increment();
+
+        if (!isPermitted(request)) {
+            halt(403);
+        }
+    }
+
+    boolean isPermitted(Request request) {
         var subAttrs = new HashMap<String, Object>();
         subAttrs.put("user", request.attribute(UserController.USERNAME_ATTR_KEY));
         subAttrs.put("groups", request.attribute(UserController.GROUP_ATTR_KEY));
@@ -26,11 +42,29 @@ public abstract class ABACAccessController {
         envAttr.put("timeOfDay", LocalTime.now());
         envAttr.put("ip", request.ip());
 
-        var decision = checkPermitted(subAttrs, resourceAttrs, actionAttrs, envAttr);
+        return checkPermitted(subAttrs, resourceAttrs, actionAttrs, envAttr).isPermitted();
+    }
 
-        if (!decision.isPermitted()) {
-            halt(403);
-        }
+    public long evaluatedCount() {
+        return evaluated.sum();
+    }
+
+    public long skippedCount() {
+        return skipped.sum();
+    }
+
+    /**
+     * Replaces the policy with one compiled from {@code source}, throwing IllegalArgumentException and keeping
+     * the current policy if it is invalid.
+     */
+    public abstract void reload(String source);
+
+    /**
+     * Returns false when no loaded rule can match a request with this method and path, so the request can skip
+     * attribute collection and evaluation.
+     */
+    boolean mayApply(String method, String path) {
+        return true;
     }
 
     abstract Decision checkPermitted(
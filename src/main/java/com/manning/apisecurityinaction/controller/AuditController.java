@@ -4,66 +4,259 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
-import org.dalesbred.Database;
-import org.json.JSONArray;
 import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.manning.apisecurityinaction.JsonArrayStream;
+import com.manning.apisecurityinaction.Queries;
+import com.manning.apisecurityinaction.Queries.Query;
+import com.manning.apisecurityinaction.RouteTable;
 
 import spark.Request;
 import spark.Response;
 
 public class AuditController {
-    private final Database database;
+    private static final Logger logger = LoggerFactory.getLogger(AuditController.class);
+    private static final int LOG_PAGE_SIZE = 500;
+
+    private final IdAllocator auditIds;
+    private final Query findRecentLogs;
+    private final Query sumRollups;
+    private final Query insertRequest;
+    private final Query insertResponse;
+    private final Query insertRollups;
     private final String auditAttrKey = "audit_id";
+    private final ConcurrentMap<RollupKey, Long> rollups = new ConcurrentHashMap<>();
 
-    public AuditController(Database database) {
-        this.database = database;
+    public AuditController(Queries queries, IdAllocator auditIds, ScheduledExecutorService scheduler) {
+        this.auditIds = auditIds;
+        this.findRecentLogs = queries.define("audit_logs.find_since",
+                "SELECT _ROWID_ AS row_id, audit_id, method, path, status, user_id, audit_time " +
+                        "FROM audit_logs " +
+                        "WHERE audit_time > ? AND _ROWID_ > ? " +
+                        "ORDER BY _ROWID_ " +
+                        "LIMIT ?");
+        this.sumRollups = queries.define("audit_rollups.sum",
+                "SELECT path, status, user_id, SUM(request_count) AS request_count " +
+                        "FROM audit_rollups " +
+                        "WHERE rollup_time >= ? AND rollup_time < ? " +
+                        "GROUP BY path, status, user_id");
+        this.insertRequest = queries.define("audit_logs.insert_request",
+                "INSERT INTO audit_logs(audit_id, method, path, user_id, audit_time)" +
+                        "VALUES(?, ?, ?, ?, current_timestamp)");
+        this.insertResponse = queries.define("audit_logs.insert_response",
+                "INSERT INTO audit_logs(audit_id, method, path, status, user_id, audit_time)" +
+                        "VALUES(?, ?, ?, ?, ?, current_timestamp)");
+        this.insertRollups = queries.define("audit_rollups.insert",
+                "INSERT INTO audit_rollups(rollup_time, path, status, user_id, request_count) " +
+                        "VALUES(?, ?, ?, ?, ?)");
+
+        scheduler.scheduleAtFixedRate(this::flushRollups, 1, 1, TimeUnit.MINUTES);
     }
 
-    public JSONArray readAuditLogs(Request request, Response response) {
+    public String readAuditLogs(Request request, Response response) {
         var since = Instant.now().minus(1, ChronoUnit.HOURS);
-        var logs = database.findAll(AuditController::recordToJson,
-                "SELECT audit_id, method, path, status, user_id, audit_time " +
-                        "FROM audit_logs " +
-                        "WHERE audit_time > ?",
-                since);
-        return new JSONArray(logs);
+        var logs = new KeysetIterator<>(0, LOG_PAGE_SIZE,
+                (afterRowId, limit) -> findRecentLogs.findAll(AuditRecord::fromRow, since, afterRowId, limit),
+                record -> record.rowId);
+        response.status(200);
+        response.header("Cache-Control", "no-store");
+        new JsonArrayStream<>(logs, record -> record.json).writeTo(response);
+        return "";
     }
 
-    public void logRequest(Request request, Response response) {
-        database.withVoidTransaction(tx -> {
-            var auditId = database.findUniqueLong("SELECT NEXT VALUE FOR audit_id_seq");
-            request.attribute(auditAttrKey, auditId);
-            database.updateUnique(
-                    "INSERT INTO audit_logs(audit_id, method, path, user_id, audit_time)" +
-                            "VALUES(?, ?, ?, ?, current_timestamp)",
-                    auditId,
-                    request.requestMethod(),
-                    request.pathInfo(),
-                    request.attribute(UserController.USERNAME_ATTR_KEY));
+    public JSONObject readAuditStats(Request request, Response response) {
+        var to = request.queryParams("to") != null ? Instant.parse(request.queryParams("to")) : Instant.now();
+        var from = request.queryParams("from") != null ? Instant.parse(request.queryParams("from"))
+                : to.minus(1, ChronoUnit.HOURS);
+        if (!from.isBefore(to)) {
+            throw new IllegalArgumentException("from must be before to");
+        }
+
+        var fromMinute = from.truncatedTo(ChronoUnit.MINUTES);
+        var stats = new AuditStats();
+        sumRollups.executeQuery(rows -> {
+            while (rows.next()) {
+                stats.add(rows.getString("path"), (Integer) rows.getObject("status"),
+                        rows.getString("user_id"), rows.getLong("request_count"));
+            }
+            return null;
+        }, fromMinute, to);
+
+        rollups.forEach((key, count) -> {
+            if (!key.minute.isBefore(fromMinute) && key.minute.isBefore(to)) {
+                stats.add(key.path, key.status, key.userId, count);
+            }
         });
+
+        response.status(200);
+        return stats.toJson().put("from", fromMinute).put("to", to);
+    }
+
+    public void logRequest(Request request, Response response) {
+        var auditId = auditIds.nextId();
+        request.attribute(auditAttrKey, auditId);
+        insertRequest.updateUnique(
+                auditId,
+                request.requestMethod(),
+                request.pathInfo(),
+                request.attribute(UserController.USERNAME_ATTR_KEY));
     }
 
     public void logResponse(Request request, Response response) {
-        database.withVoidTransaction(tx -> {
-            database.updateUnique(
-                    "INSERT INTO audit_logs(audit_id, method, path, status, user_id, audit_time)" +
-                            "VALUES(?, ?, ?, ?, ?, current_timestamp)",
-                    request.attribute(auditAttrKey),
-                    request.requestMethod(),
-                    request.pathInfo(),
-                    response.status(),
-                    request.attribute(UserController.USERNAME_ATTR_KEY));
-        });
+        if (request.attribute(auditAttrKey) == null) {
+            return;
+        }
+
+        insertResponse.updateUnique(
+                request.attribute(auditAttrKey),
+                request.requestMethod(),
+                request.pathInfo(),
+                response.status(),
+                request.attribute(UserController.USERNAME_ATTR_KEY));
+
+        // Rolled up by route template, as raw paths would give every space and message its own row.
+        String route = request.attribute(RouteTable.ROUTE_ATTR_KEY);
+        var key = new RollupKey(Instant.now().truncatedTo(ChronoUnit.MINUTES), route == null ? "*" : route,
+                response.status(), request.attribute(UserController.USERNAME_ATTR_KEY));
+        rollups.merge(key, 1L, Long::sum);
+    }
+
+    public void flushRollups() {
+        var currentMinute = Instant.now().truncatedTo(ChronoUnit.MINUTES);
+        var flushed = new HashMap<RollupKey, Long>();
+        for (var key : rollups.keySet()) {
+            if (!key.minute.isBefore(currentMinute)) {
+                continue;
+            }
+
+            var count = rollups.remove(key);
+            if (count != null) {
+                flushed.put(key, count);
+            }
+        }
+        if (flushed.isEmpty()) {
+            return;
+        }
+
+        // Runs on a fixed-rate schedule, which an escaping exception would cancel. The counts go back into the
+        // map so the next run retries them.
+        try {
+            var batch = new ArrayList<List<?>>(flushed.size());
+            flushed.forEach((key, count) -> batch.add(Arrays.asList(key.minute, key.path, key.status, key.userId,
+                    count)));
+            insertRollups.updateBatch(batch);
+        } catch (RuntimeException e) {
+            flushed.forEach((key, count) -> rollups.merge(key, count, Long::sum));
+            logger.warn("Unable to flush {} audit rollups, retrying next minute", flushed.size(), e);
+        }
     }
 
-    private static JSONObject recordToJson(ResultSet row) throws SQLException {
-        return new JSONObject()
-                .put("id", row.getLong("audit_id"))
-                .put("method", row.getString("method"))
-                .put("path", row.getString("path"))
-                .put("status", row.getString("status"))
-                .put("user_id", row.getString("user_id"))
-                .put("audit_time", row.getString("audit_time"));
+    private static class AuditRecord {
+        private final long rowId;
+        private final JSONObject json;
+
+        private AuditRecord(long rowId, JSONObject json) {
+            this.rowId = rowId;
+            this.json = json;
+        }
+
+        private static AuditRecord fromRow(ResultSet row) throws SQLException {
+            return new AuditRecord(row.getLong("row_id"), new JSONObject()
+                    .put("id", row.getLong("audit_id"))
+                    .put("method", row.getString("method"))
+                    .put("path", row.getString("path"))
+                    .put("status", row.getString("status"))
+                    .put("user_id", row.getString("user_id"))
+                    .put("audit_time", row.getString("audit_time")));
+        }
+    }
+
+    private static class RollupKey {
+        private final Instant minute;
+        private final String path;
+        private final Integer status;
+        private final String userId;
+
+        private RollupKey(Instant minute, String path, Integer status, String userId) {
+            this.minute = minute;
+            this.path = path;
+            this.status = status;
+            this.userId = userId;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof RollupKey)) {
+                return false;
+            }
+
+            var that = (RollupKey) other;
+            return minute.equals(that.minute) && Objects.equals(path, that.path)
+                    && Objects.equals(status, that.status) && Objects.equals(userId, that.userId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(minute, path, status, userId);
+        }
+    }
+
+    private static class AuditStats {
+        private long total;
+        private long errors;
+        private final Map<String, long[]> byPath = new TreeMap<>();
+        private final Map<String, long[]> byStatus = new TreeMap<>();
+        private final Map<String, long[]> byUser = new TreeMap<>();
+
+        void add(String path, Integer status, String userId, long count) {
+            var error = status != null && status >= 400;
+            total += count;
+            errors += error ? count : 0;
+            addTo(byPath, path, count, error);
+            addTo(byStatus, String.valueOf(status), count, error);
+            if (userId != null) {
+                addTo(byUser, userId, count, error);
+            }
+        }
+
+        private static void addTo(Map<String, long[]> counts, String key, long count, boolean error) {
+            var entry = counts.computeIfAbsent(key, k -> new long[2]);
+            entry[0] += count;
+            entry[1] += error ? count : 0;
+        }
+
+        JSONObject toJson() {
+            return countsToJson(total, errors)
+                    .put("by_path", groupToJson(byPath))
+                    .put("by_status", groupToJson(byStatus))
+                    .put("by_user", groupToJson(byUser));
+        }
+
+        private static JSONObject groupToJson(Map<String, long[]> counts) {
+            var json = new JSONObject();
+            counts.forEach((key, entry) -> json.put(key, countsToJson(entry[0], entry[1])));
+            return json;
+        }
+
+        private static JSONObject countsToJson(long count, long errors) {
+            return new JSONObject()
+                    .put("requests", count)
+                    .put("errors", errors)
+                    .put("error_rate", count == 0 ? 0.0 : (double) errors / count);
+        }
     }
 }
@@ -0,0 +1,68 @@
+package com.manning.apisecurityinaction.controller;
+
+import java.time.Duration;
+import java.time.Instant;
+
+import spark.Filter;
+import spark.Request;
+import spark.Response;
+
+public class CachePolicy {
+    public static final String MAX_AGE_ATTR_KEY = "cache_max_age";
+    public static final String CAP_EXPIRY_ATTR_KEY = "cap_expiry";
+
+    public Filter cacheable(String method, Duration maxAge) {
+        return (request, response) -> {
+            if (method.equalsIgnoreCase(request.requestMethod())) {
+                request.attribute(MAX_AGE_ATTR_KEY, maxAge);
+            }
+        };
+    }
+
+    public String cacheControl(Request request, Response response) {
+        Duration maxAge = request.attribute(MAX_AGE_ATTR_KEY);
+        var status = response.status();
+        if (maxAge == null || (status != 200 && status != 304)) {
+            return "no-store";
+        }
+
+        Instant capExpiry = request.attribute(CAP_EXPIRY_ATTR_KEY);
+        if (capExpiry != null) {
+            var untilExpiry = Duration.between(Instant.now(), capExpiry);
+            if (untilExpiry.compareTo(maxAge) < 0) {
+                maxAge = untilExpiry;
+            }
+        }
+
+        if (maxAge.getSeconds() <= 0) {
+            return "no-store";
+        }
+
+        // Never public, even for a bare capability URL: a shared cache would go on serving the response after the
+        // capability has been revoked.
+        return "private, max-age=" + maxAge.getSeconds();
+    }
+
+    /**
+     * Compares the If-None-Match header with an ETag using weak comparison, as RFC 7232 requires.
+     */
+    public static boolean ifNoneMatch(Request request, String etag) {
+        var header = request.headers("If-None-Match");
+        if (header == null) {
+            return false;
+        }
+
+        var opaqueTag = withoutWeakPrefix(etag);
+        for (var candidate : header.split(",")) {
+            candidate = withoutWeakPrefix(candidate.trim());
+            if (candidate.equals("*") || candidate.equals(opaqueTag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String withoutWeakPrefix(String etag) {
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
+}
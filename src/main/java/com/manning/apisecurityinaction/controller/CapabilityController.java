@@ -6,7 +6,10 @@ import static spark.Spark.halt;
 import java.net.URI;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
+import java.util.stream.Collectors;
 
 import org.json.JSONObject;
 
@@ -14,6 +17,7 @@ import com.manning.apisecurityinaction.controller.UserController.Permission;
 import com.manning.apisecurityinaction.token.SecureTokenStore;
 import com.manning.apisecurityinaction.token.TokenStore.Token;
 
+import spark.Filter;
 import spark.Request;
 import spark.Response;
 
@@ -25,17 +29,55 @@ public class CapabilityController {
     }
 
     public URI createUri(Request request, String path, Permission perms, Duration expiryDuration) {
+        return createUri(request, path, null, perms, expiryDuration);
+    }
+
+    public URI createUri(Request request, String path, String query, Permission perms, Duration expiryDuration) {
+        var tokenId = tokenStore.create(request, capabilityToken(path, perms, expiryDuration));
+
+        var uri = URI.create(request.uri());
+        var queryPrefix = query == null ? "?" : "?" + query + "&";
+        return uri.resolve(path + queryPrefix + "access_token=" + tokenId);
+    }
+
+    public List<URI> createUris(Request request, List<String> paths, Permission perms, Duration expiryDuration) {
+        var tokens = paths.stream().map(path -> capabilityToken(path, perms, expiryDuration))
+                .collect(Collectors.toList());
+        var tokenIds = tokenStore.createAll(request, tokens);
+
+        var uri = URI.create(request.uri());
+        var uris = new ArrayList<URI>(paths.size());
+        for (var i = 0; i < paths.size(); i++) {
+            uris.add(uri.resolve(paths.get(i) + "?access_token=" + tokenIds.get(i)));
+        }
+        return uris;
+    }
+
+    private static Token capabilityToken(String path, Permission perms, Duration expiryDuration) {
         var token = new Token(null, now().plus(expiryDuration));
         token.attributes.put("path", path);
         token.attributes.put("perms", perms.toString());
+        return token;
+    }
 
-        var tokenId = tokenStore.create(request, token);
+    public void lookupPermissions(Request request, Response response) {
+        lookupPermissions(request, request.pathInfo(), Permission.full);
+    }
 
-        var uri = URI.create(request.uri());
-        return uri.resolve(path + "?access_token=" + tokenId);
+    /**
+     * Lets a capability for a collection be used on a view of it, such as the messages capability on
+     * {@code /messages/stream} and {@code /messages/search}, which are not resources that capabilities are
+     * created for. The capability grants at most {@code max} there, whatever else it grants on the collection,
+     * and only on the routes that add this filter.
+     */
+    public Filter lookupParentPermissions(Permission max) {
+        return (request, response) -> {
+            var path = request.pathInfo();
+            lookupPermissions(request, path.substring(0, path.lastIndexOf('/')), max);
+        };
     }
 
-    public void lookupPermissions(Request request, Response response) {
+    private void lookupPermissions(Request request, String path, Permission max) {
         var tokenId = request.queryParams("access_token");
         if (tokenId == null) {
             return;
@@ -47,14 +89,28 @@ public class CapabilityController {
             }
 
             var tokenPath = token.attributes.get("path");
-            if (Objects.equals(tokenPath, request.pathInfo())) {
+            if (Objects.equals(tokenPath, path)) {
                 Permission currentPerms = request.attribute(UserController.PERMS_ATTR_KEY);
-                Permission extraPermission = Permission.fromString(token.attributes.get("perms"));
+                var tokenPerms = Permission.fromString(token.attributes.get("perms"));
+                var extraPermission = tokenPerms.subtract(tokenPerms.subtract(max));
                 request.attribute(UserController.PERMS_ATTR_KEY, currentPerms.combine(extraPermission));
+                request.attribute(CachePolicy.CAP_EXPIRY_ATTR_KEY, token.expiry);
             }
         });
     }
 
+    /**
+     * Reads the capability that granted permissions to a request again, for responses that stay open long after
+     * the filters ran. Returns false once it has been revoked or has expired, and true when none was used.
+     */
+    public boolean isStillValid(Request request) {
+        if (request.attribute(CachePolicy.CAP_EXPIRY_ATTR_KEY) == null) {
+            return true;
+        }
+        return tokenStore.read(request, request.queryParams("access_token"))
+                .filter(token -> now().isBefore(token.expiry)).isPresent();
+    }
+
     public JSONObject share(Request request, Response response) {
         var json = new JSONObject(request.body());
 
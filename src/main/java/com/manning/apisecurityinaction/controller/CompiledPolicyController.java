@@ -0,0 +1,271 @@
+package com.manning.apisecurityinaction.controller;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicReference;
+
+import spark.Request;
+
+/**
+ * Evaluates the simple attribute policy in accessrules.policy without a rule engine. The policy is compiled
+ * into per-method arrays of rules whose conditions are Java predicates over typed attributes, so a decision
+ * reads the request directly and allocates only when it is sampled. {@link #reload(String)} swaps in a new policy
+ * atomically, after the same check against recently sampled decisions as {@link DroolsAccessController}.
+ */
+public class CompiledPolicyController extends ABACAccessController {
+    private static final long HOUR_MILLIS = 60 * 60 * 1000L;
+    private static final long DAY_MILLIS = 24 * HOUR_MILLIS;
+
+    private final AtomicReference<Policy> policy;
+    private final TimeZone zone = TimeZone.getDefault();
+    private final DecisionSamples<Query> samples;
+
+    public CompiledPolicyController(String source) {
+        this(source, false);
+    }
+
+    /**
+     * Unless {@code allowDecisionChanges} is set, {@link #reload(String)} rejects a policy that decides any
+     * recently sampled request differently from the current one.
+     */
+    public CompiledPolicyController(String source, boolean allowDecisionChanges) {
+        this.policy = new AtomicReference<>(Policy.compile(source));
+        this.samples = new DecisionSamples<>(allowDecisionChanges);
+    }
+
+    public static CompiledPolicyController fromClasspath(String resource) throws IOException {
+        return fromClasspath(resource, false);
+    }
+
+    public static CompiledPolicyController fromClasspath(String resource, boolean allowDecisionChanges)
+            throws IOException {
+        try (var in = CompiledPolicyController.class.getResourceAsStream(resource)) {
+            if (in == null) {
+                throw new IOException("missing policy " + resource);
+            }
+            return new CompiledPolicyController(new String(in.readAllBytes(), UTF_8), allowDecisionChanges);
+        }
+    }
+
+    @Override
+    public void reload(String source) {
+        var candidate = Policy.compile(source);
+        samples.replay(query -> candidate.permits(query.method, query.path, query.user, query.hour),
+                () -> policy.set(candidate));
+    }
+
+    @Override
+    boolean mayApply(String method, String path) {
+        return policy.get().mayApply(method);
+    }
+
+    @Override
+    boolean isPermitted(Request request) {
+        var now = System.currentTimeMillis();
+        var hour = (int) (Math.floorMod(now + zone.getOffset(now), DAY_MILLIS) / HOUR_MILLIS);
+        return permits(request.requestMethod(), request.pathInfo(),
+                request.attribute(UserController.USERNAME_ATTR_KEY), hour);
+    }
+
+    @Override
+    Decision checkPermitted(Map<String, Object> subAttrs, Map<String, Object> resourceAttrs,
+            Map<String, Object> actionAttrs, Map<String, Object> envAttrs) {
+        var decision = new Decision();
+        if (!permits((String) actionAttrs.get("method"), (String) resourceAttrs.get("path"),
+                (String) subAttrs.get("user"), ((LocalTime) envAttrs.get("timeOfDay")).getHour())) {
+            decision.deny();
+        }
+        return decision;
+    }
+
+    private boolean permits(String method, String path, String user, int hour) {
+        var permitted = policy.get().permits(method, path, user, hour);
+        if (samples.shouldSample()) {
+            samples.record(new Query(method, path, user, hour), permitted);
+        }
+        return permitted;
+    }
+
+    private static class Query {
+        private final String method;
+        private final String path;
+        private final String user;
+        private final int hour;
+
+        private Query(String method, String path, String user, int hour) {
+            this.method = method;
+            this.path = path;
+            this.user = user;
+            this.hour = hour;
+        }
+
+        @Override
+        public String toString() {
+            return method + " " + path;
+        }
+    }
+
+    interface Condition {
+        boolean test(String method, String path, String user, int hour);
+    }
+
+    private static class Rule {
+        private final boolean permit;
+        private final String method;
+        private final Condition[] conditions;
+
+        private Rule(boolean permit, String method, Condition[] conditions) {
+            this.permit = permit;
+            this.method = method;
+            this.conditions = conditions;
+        }
+
+        boolean matches(String method, String path, String user, int hour) {
+            for (var condition : conditions) {
+                if (!condition.test(method, path, user, hour)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static class Policy {
+        private static final Rule[] NO_RULES = new Rule[0];
+
+        private final Map<String, Rule[]> byMethod;
+        private final Rule[] anyMethod;
+
+        private Policy(Map<String, Rule[]> byMethod, Rule[] anyMethod) {
+            this.byMethod = byMethod;
+            this.anyMethod = anyMethod;
+        }
+
+        boolean mayApply(String method) {
+            return anyMethod.length > 0 || byMethod.containsKey(method);
+        }
+
+        boolean permits(String method, String path, String user, int hour) {
+            for (var rule : byMethod.getOrDefault(method, anyMethod)) {
+                if (rule.matches(method, path, user, hour)) {
+                    return rule.permit;
+                }
+            }
+            return true;
+        }
+
+        static Policy compile(String source) {
+            var rules = new ArrayList<Rule>();
+            var lineNumber = 0;
+            for (var line : source.split("\n")) {
+                lineNumber++;
+                line = line.strip();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+
+                try {
+                    rules.add(compileRule(line));
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("policy line " + lineNumber + ": " + e.getMessage(), e);
+                }
+            }
+
+            // Each method gets every rule that names it or no method at all, in policy order.
+            var methods = new LinkedHashSet<String>();
+            rules.stream().filter(rule -> rule.method != null).forEach(rule -> methods.add(rule.method));
+            var byMethod = new HashMap<String, Rule[]>();
+            for (var method : methods) {
+                byMethod.put(method, rules.stream()
+                        .filter(rule -> rule.method == null || rule.method.equals(method))
+                        .toArray(Rule[]::new));
+            }
+            var anyMethod = rules.stream().filter(rule -> rule.method == null).toArray(Rule[]::new);
+            return new Policy(byMethod, anyMethod.length == 0 ? NO_RULES : anyMethod);
+        }
+
+        private static Rule compileRule(String line) {
+            var parts = line.split("\\s+", 2);
+            if (!parts[0].equals("permit") && !parts[0].equals("deny")) {
+                throw new IllegalArgumentException("expected permit or deny");
+            }
+
+            String method = null;
+            var conditions = new ArrayList<Condition>();
+            for (var clause : parts.length > 1 ? parts[1].split("\\s+and\\s+") : new String[0]) {
+                var tokens = clause.strip().split("\\s+");
+                if (tokens.length != 3) {
+                    throw new IllegalArgumentException("expected <attribute> <op> <value>: " + clause);
+                }
+
+                if (method == null && tokens[0].equals("method") && tokens[1].equals("==")) {
+                    method = tokens[2].toUpperCase();
+                } else {
+                    conditions.add(compileCondition(tokens[0], tokens[1], tokens[2]));
+                }
+            }
+            return new Rule(parts[0].equals("permit"), method, conditions.toArray(new Condition[0]));
+        }
+
+        private static Condition compileCondition(String attribute, String op, String value) {
+            switch (attribute) {
+            case "hour":
+                return compileHour(op, Integer.parseInt(value));
+            case "method":
+                return compileString(0, op, value.toUpperCase());
+            case "path":
+                return compileString(1, op, value);
+            case "user":
+                return compileString(2, op, value);
+            default:
+                throw new IllegalArgumentException("unknown attribute " + attribute);
+            }
+        }
+
+        private static Condition compileHour(String op, int value) {
+            switch (op) {
+            case "==":
+                return (method, path, user, hour) -> hour == value;
+            case "!=":
+                return (method, path, user, hour) -> hour != value;
+            case "<":
+                return (method, path, user, hour) -> hour < value;
+            case "<=":
+                return (method, path, user, hour) -> hour <= value;
+            case ">":
+                return (method, path, user, hour) -> hour > value;
+            case ">=":
+                return (method, path, user, hour) -> hour >= value;
+            default:
+                throw new IllegalArgumentException("unsupported operator for hour: " + op);
+            }
+        }
+
+        private static Condition compileString(int attribute, String op, String value) {
+            switch (op) {
+            case "==":
+                return (method, path, user, hour) -> value.equals(select(attribute, method, path, user));
+            case "!=":
+                return (method, path, user, hour) -> !value.equals(select(attribute, method, path, user));
+            case "^=":
+                return (method, path, user, hour) -> {
+                    var actual = select(attribute, method, path, user);
+                    return actual != null && actual.startsWith(value);
+                };
+            default:
+                throw new IllegalArgumentException("unsupported operator: " + op);
+            }
+        }
+
+        private static String select(int attribute, String method, String path, String user) {
+            return attribute == 0 ? method : attribute == 1 ? path : user;
+        }
+    }
+}
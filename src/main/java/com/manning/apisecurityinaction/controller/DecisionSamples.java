@@ -0,0 +1,83 @@
+package com.manning.apisecurityinaction.controller;
+
+import java.util.ArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Predicate;
+
+/**
+ * A bounded sample of recent requests and the decisions made for them, used to check that a reloaded policy
+ * decides them the same way before it is swapped in. The {@code toString} of a request describes it in errors.
+ */
+class DecisionSamples<T> {
+    private static final int MAX_SAMPLES = 100;
+    private static final int SAMPLE_RATE = 64;
+
+    private final boolean allowDecisionChanges;
+    private final AtomicReferenceArray<Sample<T>> samples = new AtomicReferenceArray<>(MAX_SAMPLES);
+    private final AtomicLong sampled = new AtomicLong();
+
+    DecisionSamples(boolean allowDecisionChanges) {
+        this.allowDecisionChanges = allowDecisionChanges;
+    }
+
+    /**
+     * Returns whether the current decision should be recorded, so callers only build a request when it is.
+     */
+    boolean shouldSample() {
+        // Samples go into a ring indexed by a counter. Once it is full only one decision in SAMPLE_RATE
+        // overwrites a slot, so the counter stays off the hot path.
+        return sampled.get() < MAX_SAMPLES || ThreadLocalRandom.current().nextInt(SAMPLE_RATE) == 0;
+    }
+
+    void record(T request, boolean permitted) {
+        samples.set((int) (sampled.getAndIncrement() % MAX_SAMPLES), new Sample<>(request, permitted));
+    }
+
+    /**
+     * Replays the samples against {@code candidate} and runs {@code swap} only if no decision changes, or changes
+     * are allowed, throwing IllegalArgumentException otherwise. Samples are then updated to the new decisions.
+     */
+    void replay(Predicate<T> candidate, Runnable swap) {
+        @SuppressWarnings("unchecked")
+        var recorded = (Sample<T>[]) new Sample<?>[MAX_SAMPLES];
+        @SuppressWarnings("unchecked")
+        var replayed = (Sample<T>[]) new Sample<?>[MAX_SAMPLES];
+        var changes = new ArrayList<String>();
+        for (var i = 0; i < MAX_SAMPLES; i++) {
+            var sample = samples.get(i);
+            if (sample == null) {
+                continue;
+            }
+            recorded[i] = sample;
+
+            var permitted = candidate.test(sample.request);
+            if (permitted != sample.permitted) {
+                changes.add(sample.request + (permitted ? " deny -> permit" : " permit -> deny"));
+            }
+            replayed[i] = new Sample<>(sample.request, permitted);
+        }
+
+        if (!changes.isEmpty() && !allowDecisionChanges) {
+            throw new IllegalArgumentException("rules change " + changes.size() + " recent decisions: " + changes);
+        }
+
+        swap.run();
+        for (var i = 0; i < MAX_SAMPLES; i++) {
+            if (replayed[i] != null) {
+                samples.compareAndSet(i, recorded[i], replayed[i]);
+            }
+        }
+    }
+
+    private static class Sample<T> {
+        private final T request;
+        private final boolean permitted;
+
+        private Sample(T request, boolean permitted) {
+            this.request = request;
+            this.permitted = permitted;
+        }
+    }
+}
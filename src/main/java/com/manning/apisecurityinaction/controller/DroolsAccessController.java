@@ -1,35 +1,196 @@
 package com.manning.apisecurityinaction.controller;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.time.LocalTime;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+import org.drools.core.command.impl.CommandFactoryServiceImpl;
+import org.drools.core.util.DroolsStreamUtils;
+import org.kie.api.KieBase;
+import org.kie.api.command.Command;
+import org.kie.api.command.KieCommands;
+import org.kie.api.runtime.StatelessKieSession;
 
-import org.kie.api.KieServices;
-import org.kie.api.runtime.KieContainer;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 
 public class DroolsAccessController extends ABACAccessController {
-    private final KieContainer kieContainer;
+    private final boolean cacheDecisions;
+    private final DecisionSamples<Facts> samples;
+    private volatile RuleBase rules;
 
     public DroolsAccessController() {
-        this.kieContainer = KieServices.get().getKieClasspathContainer();
+        this(false);
+    }
+
+    public DroolsAccessController(boolean cacheDecisions) {
+        this(cacheDecisions, false);
+    }
+
+    /**
+     * When {@code cacheDecisions} is set, decisions are cached by the values of the attributes the loaded rules
+     * reference, using only the hour of times the rules only compare by hour. Rules that {@link RuleAnalysis}
+     * cannot fully analyse disable the cache until they are replaced.
+     * <p>
+     * Unless {@code allowDecisionChanges} is set, {@link #reload(String)} rejects rules that decide any recently
+     * sampled request differently from the current rules.
+     */
+    public DroolsAccessController(boolean cacheDecisions, boolean allowDecisionChanges) {
+        this.cacheDecisions = cacheDecisions;
+        this.samples = new DecisionSamples<>(allowDecisionChanges);
+        this.rules = new RuleBase(loadRules(), cacheDecisions);
+    }
+
+    /**
+     * Loads the rule base that the build compiled from accessrules.drl, so startup does not need drools-compiler.
+     * Without the build step, for example when running from an IDE, the rules are compiled from source instead.
+     */
+    private static KieBase loadRules() {
+        var loader = DroolsAccessController.class.getClassLoader();
+        try (var in = loader.getResourceAsStream("accessrules.kbase")) {
+            if (in != null) {
+                return (KieBase) DroolsStreamUtils.streamIn(in, loader);
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            throw new IllegalStateException("unable to load compiled rules", e);
+        }
+
+        try (var in = loader.getResourceAsStream("accessrules.drl")) {
+            return RuleBaseCompiler.compile(new String(in.readAllBytes(), UTF_8));
+        } catch (IOException e) {
+            throw new IllegalStateException("unable to read rules", e);
+        }
+    }
+
+    /**
+     * Compiles the DRL source and replays recently sampled requests against it before swapping it in, rejecting
+     * it if any of their decisions would change. Requests already evaluating keep the rule base they started
+     * with.
+     */
+    @Override
+    public void reload(String source) {
+        var candidate = new RuleBase(RuleBaseCompiler.compile(source), cacheDecisions);
+        samples.replay(sample -> candidate.evaluate(sample.subAttrs, sample.resourceAttrs, sample.actionAttrs,
+                sample.envAttrs).isPermitted(), () -> rules = candidate);
+    }
+
+    @Override
+    boolean mayApply(String method, String path) {
+        return rules.mayApply(method, path);
     }
 
     @Override
     Decision checkPermitted(Map<String, Object> subAttrs, Map<String, Object> resourceAttrs,
             Map<String, Object> actionAttrs, Map<String, Object> envAttrs) {
-        var session = kieContainer.newKieSession();
+        var current = rules;
+        if (current.decisions == null) {
+            return evaluate(current, subAttrs, resourceAttrs, actionAttrs, envAttrs);
+        }
+
+        var key = current.cacheKey(List.of(subAttrs, resourceAttrs, actionAttrs, envAttrs));
         try {
+            var permitted = current.decisions.get(key,
+                    () -> evaluate(current, subAttrs, resourceAttrs, actionAttrs, envAttrs).isPermitted());
             var decision = new Decision();
-            session.setGlobal("decision", decision);
-            session.insert(new Subject(subAttrs));
-            session.insert(new Resource(resourceAttrs));
-            session.insert(new Action(actionAttrs));
-            session.insert(new Environment(envAttrs));
+            if (!permitted) {
+                decision.deny();
+            }
+            return decision;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
 
-            session.fireAllRules();
+    private Decision evaluate(RuleBase current, Map<String, Object> subAttrs, Map<String, Object> resourceAttrs,
+            Map<String, Object> actionAttrs, Map<String, Object> envAttrs) {
+        var decision = current.evaluate(subAttrs, resourceAttrs, actionAttrs, envAttrs);
+        if (samples.shouldSample()) {
+            samples.record(new Facts(subAttrs, resourceAttrs, actionAttrs, envAttrs), decision.isPermitted());
+        }
+        return decision;
+    }
+
+    private static class Facts {
+        private final Map<String, Object> subAttrs;
+        private final Map<String, Object> resourceAttrs;
+        private final Map<String, Object> actionAttrs;
+        private final Map<String, Object> envAttrs;
+
+        private Facts(Map<String, Object> subAttrs, Map<String, Object> resourceAttrs,
+                Map<String, Object> actionAttrs, Map<String, Object> envAttrs) {
+            this.subAttrs = subAttrs;
+            this.resourceAttrs = resourceAttrs;
+            this.actionAttrs = actionAttrs;
+            this.envAttrs = envAttrs;
+        }
+
+        @Override
+        public String toString() {
+            return actionAttrs.get("method") + " " + resourceAttrs.get("path");
+        }
+    }
+
+    private static class RuleBase {
+        // KieServices.get().getCommands() lives in drools-compiler, so use the drools-core implementation.
+        private static final KieCommands COMMANDS = new CommandFactoryServiceImpl();
+
+        private final StatelessKieSession session;
+        private final Map<String, List<String>> ruleScopes;
+        private final List<RuleAnalysis.Attribute> keyAttributes;
+        private final Cache<List<Object>, Boolean> decisions;
 
+        private RuleBase(KieBase kieBase, boolean cacheDecisions) {
+            // Sessions from a pool are reset and reused rather than rebuilt for every execution.
+            this.session = kieBase.newKieSessionsPool(Runtime.getRuntime().availableProcessors())
+                    .newStatelessKieSession();
+            var analysis = new RuleAnalysis(kieBase);
+            this.ruleScopes = analysis.scopes();
+            this.keyAttributes = analysis.attributes();
+            this.decisions = cacheDecisions && analysis.isTransparent()
+                    ? CacheBuilder.newBuilder().maximumSize(1000).build() : null;
+        }
+
+        List<Object> cacheKey(List<Map<String, Object>> facts) {
+            var key = new ArrayList<>(keyAttributes.size());
+            for (var attribute : keyAttributes) {
+                var value = facts.get(attribute.fact).get(attribute.name);
+                key.add(attribute.hourOnly && value instanceof LocalTime ? ((LocalTime) value).getHour() : value);
+            }
+            return key;
+        }
+
+        boolean mayApply(String method, String path) {
+            return matchesScope(ruleScopes.get(method), path) || matchesScope(ruleScopes.get("*"), path);
+        }
+
+        Decision evaluate(Map<String, Object> subAttrs, Map<String, Object> resourceAttrs,
+                Map<String, Object> actionAttrs, Map<String, Object> envAttrs) {
+            var decision = new Decision();
+            session.execute(COMMANDS.newBatchExecution(List.<Command<?>>of(
+                    COMMANDS.newSetGlobal("decision", decision),
+                    COMMANDS.newInsertElements(List.of(new Subject(subAttrs), new Resource(resourceAttrs),
+                            new Action(actionAttrs), new Environment(envAttrs))),
+                    COMMANDS.newFireAllRules())));
             return decision;
-        } finally {
-            session.dispose();
+        }
+
+        private static boolean matchesScope(List<String> pathPrefixes, String path) {
+            if (pathPrefixes == null) {
+                return false;
+            }
+
+            for (var prefix : pathPrefixes) {
+                if (path.startsWith(prefix)) {
+                    return true;
+                }
+            }
+            return false;
         }
     }
 
@@ -0,0 +1,123 @@
+package com.manning.apisecurityinaction.controller;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.manning.apisecurityinaction.Queries;
+
+/**
+ * Hands out ids from blocks reserved from a database sequence in a single round trip. The next block is
+ * fetched in the background once the current one runs low, so callers only wait on the database when
+ * ids are consumed faster than a block can be refilled.
+ */
+public class IdAllocator {
+    private final Queries.Query fetchIds;
+    private final int blockSize;
+    private final Executor executor;
+    private final AtomicReference<Block> current = new AtomicReference<>(new Block(new long[0]));
+    private final AtomicReference<CompletableFuture<Block>> refill = new AtomicReference<>();
+    private final LongAdder refills;
+    private final LongAdder refillMillis;
+    private final LongAdder refillWaits;
+
+    public IdAllocator(Queries queries, String sequence, int blockSize, Executor executor, Metrics metrics) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("block size must be positive");
+        }
+
+        this.fetchIds = queries.define("ids." + sequence,
+                "SELECT NEXT VALUE FOR " + sequence + " FROM SYSTEM_RANGE(1, ?)");
+        this.blockSize = blockSize;
+        this.executor = executor;
+        this.refills = metrics.counter("ids." + sequence + ".refills");
+        this.refillMillis = metrics.counter("ids." + sequence + ".refill_millis");
+        this.refillWaits = metrics.counter("ids." + sequence + ".refill_waits");
+        metrics.gauge("ids." + sequence + ".block_remaining", () -> current.get().remaining());
+    }
+
+    public long nextId() {
+        while (true) {
+            var block = current.get();
+            var i = block.next.getAndIncrement();
+            if (i < block.ids.length) {
+                if (i == block.lowWatermark) {
+                    startRefill();
+                }
+                return block.ids[i];
+            }
+
+            refillWaits.increment();
+            var pending = startRefill();
+            Block next;
+            try {
+                next = pending.join();
+            } catch (CompletionException e) {
+                refill.compareAndSet(pending, null);
+                throw e;
+            }
+
+            if (current.compareAndSet(block, next)) {
+                refill.compareAndSet(pending, null);
+            }
+        }
+    }
+
+    public List<Long> nextIds(int count) {
+        var ids = new ArrayList<Long>(count);
+        for (var i = 0; i < count; i++) {
+            ids.add(nextId());
+        }
+        return ids;
+    }
+
+    private CompletableFuture<Block> startRefill() {
+        while (true) {
+            var pending = refill.get();
+            if (pending != null) {
+                return pending;
+            }
+
+            var future = new CompletableFuture<Block>();
+            if (refill.compareAndSet(null, future)) {
+                executor.execute(() -> {
+                    try {
+                        future.complete(fetchBlock());
+                    } catch (RuntimeException e) {
+                        future.completeExceptionally(e);
+                    }
+                });
+                return future;
+            }
+        }
+    }
+
+    private Block fetchBlock() {
+        var start = System.nanoTime();
+        var ids = fetchIds.findAll(Long.class, blockSize).stream().mapToLong(Long::longValue).sorted().toArray();
+
+        refills.increment();
+        refillMillis.add((System.nanoTime() - start) / 1_000_000);
+        return new Block(ids);
+    }
+
+    private static class Block {
+        private final long[] ids;
+        private final int lowWatermark;
+        private final AtomicInteger next = new AtomicInteger();
+
+        Block(long[] ids) {
+            this.ids = ids;
+            this.lowWatermark = ids.length - Math.max(1, ids.length / 4);
+        }
+
+        int remaining() {
+            return Math.max(0, ids.length - next.get());
+        }
+    }
+}
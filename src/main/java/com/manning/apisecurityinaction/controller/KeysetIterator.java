@@ -0,0 +1,50 @@
+package com.manning.apisecurityinaction.controller;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.BiFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * Iterates over a query one page at a time, fetching each page after the key of the last row seen, so only a
+ * single page is held in memory.
+ */
+class KeysetIterator<T> implements Iterator<T> {
+    private final BiFunction<Long, Integer, List<T>> fetchPage;
+    private final ToLongFunction<T> key;
+    private final int pageSize;
+    private Iterator<T> page = Collections.emptyIterator();
+    private long lastKey;
+    private boolean lastPage;
+
+    KeysetIterator(long startKey, int pageSize, BiFunction<Long, Integer, List<T>> fetchPage,
+            ToLongFunction<T> key) {
+        this.lastKey = startKey;
+        this.pageSize = pageSize;
+        this.fetchPage = fetchPage;
+        this.key = key;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (!page.hasNext() && !lastPage) {
+            var rows = fetchPage.apply(lastKey, pageSize);
+            lastPage = rows.size() < pageSize;
+            page = rows.iterator();
+        }
+        return page.hasNext();
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        var row = page.next();
+        lastKey = key.applyAsLong(row);
+        return row;
+    }
+}
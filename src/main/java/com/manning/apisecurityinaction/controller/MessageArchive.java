@@ -0,0 +1,362 @@
+package com.manning.apisecurityinaction.controller;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.manning.apisecurityinaction.Queries;
+import com.manning.apisecurityinaction.controller.SpaceController.Message;
+
+/**
+ * Cold storage for old messages. Each space has a directory of gzip segment files, each holding up to
+ * {@link #SEGMENT_SIZE} messages in (msg_time, msg_id) order, plus a small index file per segment listing
+ * its time range and sorted message ids. Only the index files are kept in memory.
+ * <p>
+ * The index files are only read when the archive is opened, so an archive directory can be open in one process
+ * at a time. The server holds a lock on it while running, and {@code ArchiveCommand} fails rather than change
+ * the segments underneath it.
+ */
+public class MessageArchive {
+    private static final Logger logger = LoggerFactory.getLogger(MessageArchive.class);
+    private static final int SEGMENT_SIZE = 1000;
+    private static final Comparator<Segment> BY_POSITION = Comparator.comparing((Segment s) -> s.minTime)
+            .thenComparingLong(s -> s.minId);
+
+    private final Queries queries;
+    private final Queries.Query findArchivableSpaces;
+    private final Queries.Query findArchivable;
+    private final Queries.Query deleteMessage;
+    private final Queries.Query mergeMessage;
+    private final Path dir;
+    private final ConcurrentMap<Long, List<Segment>> segments = new ConcurrentHashMap<>();
+    private final FileLock lock;
+
+    public MessageArchive(Queries queries, Path dir) throws IOException {
+        this.queries = queries;
+        this.findArchivableSpaces = queries.define("archive.find_spaces",
+                "SELECT DISTINCT space_id FROM messages WHERE msg_time < ? AND deleted_at IS NULL");
+        this.findArchivable = queries.define("archive.find_messages",
+                "SELECT msg_id, space_id, author, msg_time, msg_text " +
+                        "FROM messages " +
+                        "WHERE space_id = ? AND msg_time < ? AND deleted_at IS NULL " +
+                        "AND msg_time >= ? AND (msg_time > ? OR msg_id > ?) " +
+                        "ORDER BY msg_time, msg_id " +
+                        "LIMIT ?");
+        this.deleteMessage = queries.define("archive.delete_message", "DELETE FROM messages WHERE msg_id = ?");
+        this.mergeMessage = queries.define("archive.restore_message",
+                "MERGE INTO messages(msg_id, space_id, author, msg_time, msg_text) KEY(msg_id) VALUES(?, ?, ?, ?, ?)");
+        this.dir = dir;
+
+        Files.createDirectories(dir);
+        var lockFile = FileChannel.open(dir.resolve(".lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        this.lock = lockFile.tryLock();
+        if (lock == null) {
+            lockFile.close();
+            throw new IllegalStateException("archive " + dir + " is in use by another process");
+        }
+        try (var files = Files.walk(dir)) {
+            for (var idx : files.filter(path -> path.toString().endsWith(".idx")).collect(Collectors.toList())) {
+                addSegment(Segment.load(idx));
+            }
+        }
+    }
+
+    public void startArchiver(ScheduledExecutorService scheduler, Duration maxAge) {
+        scheduler.scheduleWithFixedDelay(() -> {
+            // An exception escaping a scheduled task would stop the archiver for good.
+            try {
+                archiveOlderThan(Instant.now().minus(maxAge));
+            } catch (RuntimeException e) {
+                logger.warn("Unable to archive messages, retrying in an hour", e);
+            }
+        }, 1, 60, TimeUnit.MINUTES);
+    }
+
+    public Optional<Message> find(long spaceId, long msgId) {
+        for (var segment : segments(spaceId)) {
+            if (Arrays.binarySearch(segment.ids, msgId) >= 0) {
+                return segment.read().stream().filter(msg -> msg.getMsgId() == msgId).findFirst();
+            }
+        }
+        return Optional.empty();
+    }
+
+    public List<Message> findAfter(long spaceId, Instant msgTime, long msgId, int limit) {
+        var results = new ArrayList<Message>();
+        for (var segment : segments(spaceId)) {
+            if (Message.compare(segment.maxTime, segment.maxId, msgTime, msgId) <= 0) {
+                continue;
+            }
+
+            for (var msg : segment.read()) {
+                if (Message.compare(msg.getMsgTime(), msg.getMsgId(), msgTime, msgId) > 0) {
+                    results.add(msg);
+                    if (results.size() == limit) {
+                        return results;
+                    }
+                }
+            }
+        }
+        return results;
+    }
+
+    public void forEach(long spaceId, Consumer<Message> consumer) {
+        for (var segment : segments(spaceId)) {
+            segment.read().forEach(consumer);
+        }
+    }
+
+    public synchronized int archiveOlderThan(Instant cutoff) {
+        var archived = 0;
+        var spaceIds = findArchivableSpaces.findAll(Long.class, cutoff);
+        for (var spaceId : spaceIds) {
+            var afterTime = Instant.EPOCH;
+            var afterId = Long.MIN_VALUE;
+            while (true) {
+                var chunk = findArchivable.findAll(Message.class, spaceId, cutoff, afterTime, afterTime, afterId,
+                        SEGMENT_SIZE);
+                if (chunk.isEmpty()) {
+                    break;
+                }
+                addSegment(Segment.write(dir.resolve("space-" + spaceId), spaceId, chunk));
+
+                var rows = chunk.stream().map(msg -> List.of(msg.getMsgId())).collect(Collectors.toList());
+                queries.withVoidTransaction(tx -> {
+                    deleteMessage.updateBatch(rows);
+                });
+                archived += chunk.size();
+
+                var last = chunk.get(chunk.size() - 1);
+                afterTime = last.getMsgTime();
+                afterId = last.getMsgId();
+            }
+        }
+        return archived;
+    }
+
+    public synchronized int restore(long spaceId) {
+        var restored = 0;
+        for (var segment : segments(spaceId)) {
+            var rows = segment.read().stream()
+                    .map(msg -> List.of(msg.getMsgId(), msg.getSpaceId(), msg.getAuthor(), msg.getMsgTime(),
+                            msg.getMsgText()))
+                    .collect(Collectors.toList());
+            queries.withVoidTransaction(tx -> {
+                mergeMessage.updateBatch(rows);
+            });
+
+            replaceSegment(segment, null);
+            segment.delete();
+            restored += rows.size();
+        }
+        return restored;
+    }
+
+    /**
+     * Deletes one archived message, rewriting the segment that holds it.
+     */
+    public synchronized Optional<Message> remove(long spaceId, long msgId) {
+        for (var segment : segments(spaceId)) {
+            if (Arrays.binarySearch(segment.ids, msgId) < 0) {
+                continue;
+            }
+
+            var messages = segment.read();
+            var removed = messages.stream().filter(msg -> msg.getMsgId() == msgId).findFirst();
+            var remaining = messages.stream().filter(msg -> msg.getMsgId() != msgId).collect(Collectors.toList());
+            if (remaining.isEmpty()) {
+                replaceSegment(segment, null);
+                segment.delete();
+            } else {
+                replaceSegment(segment, Segment.writeAt(segment.path, spaceId, remaining));
+            }
+            return removed;
+        }
+        return Optional.empty();
+    }
+
+    public void close() throws IOException {
+        lock.channel().close();
+    }
+
+    public boolean hasArchived(long spaceId) {
+        return !segments(spaceId).isEmpty();
+    }
+
+    public List<Long> archivedSpaces() {
+        return new ArrayList<>(segments.keySet());
+    }
+
+    private List<Segment> segments(long spaceId) {
+        return segments.getOrDefault(spaceId, List.of());
+    }
+
+    private void replaceSegment(Segment segment, Segment replacement) {
+        segments.computeIfPresent(segment.spaceId, (id, spaceSegments) -> {
+            var updated = new ArrayList<>(spaceSegments);
+            updated.remove(segment);
+            if (replacement != null) {
+                updated.add(replacement);
+                updated.sort(BY_POSITION);
+            }
+            return updated.isEmpty() ? null : List.copyOf(updated);
+        });
+    }
+
+    private void addSegment(Segment segment) {
+        segments.compute(segment.spaceId, (id, spaceSegments) -> {
+            var updated = spaceSegments == null ? new ArrayList<Segment>() : new ArrayList<>(spaceSegments);
+            updated.add(segment);
+            updated.sort(BY_POSITION);
+            return List.copyOf(updated);
+        });
+    }
+
+    private static class Segment {
+        private final Path path;
+        private final long spaceId;
+        private final Instant minTime;
+        private final long minId;
+        private final Instant maxTime;
+        private final long maxId;
+        private final long[] ids;
+
+        private Segment(Path path, long spaceId, Instant minTime, long minId, Instant maxTime, long maxId,
+                long[] ids) {
+            this.path = path;
+            this.spaceId = spaceId;
+            this.minTime = minTime;
+            this.minId = minId;
+            this.maxTime = maxTime;
+            this.maxId = maxId;
+            this.ids = ids;
+        }
+
+        static Segment write(Path spaceDir, long spaceId, List<Message> messages) {
+            var first = messages.get(0);
+            var name = first.getMsgTime().toEpochMilli() + "-" + first.getMsgId();
+            return writeAt(spaceDir.resolve(name + ".seg"), spaceId, messages);
+        }
+
+        /**
+         * Writes the segment to temporary files and moves them over any segment already at {@code segPath}.
+         */
+        static Segment writeAt(Path segPath, long spaceId, List<Message> messages) {
+            var first = messages.get(0);
+            var last = messages.get(messages.size() - 1);
+            var spaceDir = segPath.getParent();
+            var fileName = segPath.getFileName().toString();
+            var name = fileName.substring(0, fileName.length() - 4);
+            var ids = messages.stream().mapToLong(Message::getMsgId).sorted().toArray();
+
+            try {
+                Files.createDirectories(spaceDir);
+                var segTmp = spaceDir.resolve(name + ".seg.tmp");
+                try (var out = new DataOutputStream(new GZIPOutputStream(
+                        new BufferedOutputStream(Files.newOutputStream(segTmp))))) {
+                    out.writeInt(messages.size());
+                    for (var msg : messages) {
+                        out.writeLong(msg.getMsgId());
+                        out.writeLong(msg.getMsgTime().toEpochMilli());
+                        out.writeUTF(msg.getAuthor());
+                        out.writeUTF(msg.getMsgText());
+                    }
+                }
+
+                var idxTmp = spaceDir.resolve(name + ".idx.tmp");
+                try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(idxTmp)))) {
+                    out.writeLong(spaceId);
+                    out.writeLong(first.getMsgTime().toEpochMilli());
+                    out.writeLong(first.getMsgId());
+                    out.writeLong(last.getMsgTime().toEpochMilli());
+                    out.writeLong(last.getMsgId());
+                    out.writeInt(ids.length);
+                    for (var id : ids) {
+                        out.writeLong(id);
+                    }
+                }
+
+                Files.move(segTmp, segPath, StandardCopyOption.ATOMIC_MOVE);
+                Files.move(idxTmp, spaceDir.resolve(name + ".idx"), StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            return new Segment(segPath, spaceId, Instant.ofEpochMilli(first.getMsgTime().toEpochMilli()),
+                    first.getMsgId(), Instant.ofEpochMilli(last.getMsgTime().toEpochMilli()), last.getMsgId(), ids);
+        }
+
+        static Segment load(Path idxPath) throws IOException {
+            try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(idxPath)))) {
+                var spaceId = in.readLong();
+                var minTime = Instant.ofEpochMilli(in.readLong());
+                var minId = in.readLong();
+                var maxTime = Instant.ofEpochMilli(in.readLong());
+                var maxId = in.readLong();
+                var ids = new long[in.readInt()];
+                for (var i = 0; i < ids.length; i++) {
+                    ids[i] = in.readLong();
+                }
+
+                var name = idxPath.getFileName().toString();
+                var segPath = idxPath.resolveSibling(name.substring(0, name.length() - 4) + ".seg");
+                return new Segment(segPath, spaceId, minTime, minId, maxTime, maxId, ids);
+            }
+        }
+
+        List<Message> read() {
+            try (var in = new DataInputStream(new GZIPInputStream(
+                    new BufferedInputStream(Files.newInputStream(path))))) {
+                var count = in.readInt();
+                var messages = new ArrayList<Message>(count);
+                for (var i = 0; i < count; i++) {
+                    var msgId = in.readLong();
+                    var msgTime = Instant.ofEpochMilli(in.readLong());
+                    var author = in.readUTF();
+                    var msgText = in.readUTF();
+                    messages.add(new Message(msgId, spaceId, author, msgTime, msgText));
+                }
+                return messages;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        void delete() {
+            try {
+                var name = path.getFileName().toString();
+                Files.deleteIfExists(path.resolveSibling(name.substring(0, name.length() - 4) + ".idx"));
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
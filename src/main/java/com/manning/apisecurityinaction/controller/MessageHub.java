@@ -0,0 +1,90 @@
+package com.manning.apisecurityinaction.controller;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class MessageHub {
+    private final int maxSubscribers;
+    private final int queueCapacity;
+    private final AtomicInteger subscriberCount = new AtomicInteger();
+    private final ConcurrentMap<Long, Set<Subscription>> subscribers = new ConcurrentHashMap<>();
+
+    public MessageHub(int maxSubscribers, int queueCapacity) {
+        this.maxSubscribers = maxSubscribers;
+        this.queueCapacity = queueCapacity;
+    }
+
+    public Optional<Subscription> subscribe(long spaceId) {
+        if (subscriberCount.incrementAndGet() > maxSubscribers) {
+            subscriberCount.decrementAndGet();
+            return Optional.empty();
+        }
+
+        var subscription = new Subscription(spaceId);
+        subscribers.compute(spaceId, (id, spaceSubscribers) -> {
+            if (spaceSubscribers == null) {
+                spaceSubscribers = ConcurrentHashMap.newKeySet();
+            }
+            spaceSubscribers.add(subscription);
+            return spaceSubscribers;
+        });
+        return Optional.of(subscription);
+    }
+
+    public void publish(long spaceId, long msgId) {
+        var spaceSubscribers = subscribers.get(spaceId);
+        if (spaceSubscribers == null) {
+            return;
+        }
+
+        for (var subscription : spaceSubscribers) {
+            if (!subscription.queue.offer(msgId)) {
+                subscription.overflowed = true;
+            }
+        }
+    }
+
+    public int subscriberCount() {
+        return subscriberCount.get();
+    }
+
+    public class Subscription implements AutoCloseable {
+        private final long spaceId;
+        private final BlockingQueue<Long> queue = new ArrayBlockingQueue<>(queueCapacity);
+        private volatile boolean overflowed;
+        private boolean closed;
+
+        private Subscription(long spaceId) {
+            this.spaceId = spaceId;
+        }
+
+        public Long poll(Duration timeout) throws InterruptedException {
+            return queue.poll(timeout.toMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        public boolean isOverflowed() {
+            return overflowed;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+            subscribers.computeIfPresent(spaceId, (id, spaceSubscribers) -> {
+                spaceSubscribers.remove(this);
+                return spaceSubscribers.isEmpty() ? null : spaceSubscribers;
+            });
+            subscriberCount.decrementAndGet();
+        }
+    }
+}
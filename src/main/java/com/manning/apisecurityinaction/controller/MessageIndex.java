@@ -0,0 +1,292 @@
+package com.manning.apisecurityinaction.controller;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.manning.apisecurityinaction.Queries;
+
+/**
+ * Per-space inverted index of message terms. A space is indexed from the database and the archive the first
+ * time it is searched, and kept up to date as messages are posted and deleted. Once the postings of all spaces
+ * take more than {@code maxBytes}, the least recently used spaces are dropped and indexed again on their next
+ * search.
+ */
+public class MessageIndex {
+    private static final int MAX_TERM_LENGTH = 64;
+    private static final long TERM_OVERHEAD_BYTES = 96;
+
+    private final Queries.Query findSpaceMessages;
+    private final MessageArchive archive;
+    private final long maxBytes;
+    private final Map<Long, SpaceIndex> spaces = new LinkedHashMap<>(16, 0.75f, true);
+    private final AtomicLong usedBytes = new AtomicLong();
+
+    public MessageIndex(Queries queries, MessageArchive archive, long maxBytes) {
+        this.findSpaceMessages = queries.define("messages.find_for_index", "SELECT msg_id, msg_text " +
+                "FROM messages " +
+                "WHERE space_id = ? AND deleted_at IS NULL " +
+                "ORDER BY msg_id");
+        this.archive = archive;
+        this.maxBytes = maxBytes;
+    }
+
+    public void add(long spaceId, long msgId, String text) {
+        var index = loaded(spaceId);
+        if (index != null) {
+            index.add(Math.toIntExact(msgId), terms(text));
+            evictColdSpaces();
+        }
+    }
+
+    public void remove(long spaceId, long msgId, String text) {
+        var index = loaded(spaceId);
+        if (index != null) {
+            index.remove(Math.toIntExact(msgId), terms(text));
+        }
+    }
+
+    /**
+     * Returns the ids of messages in the space containing every term of the query, newest first.
+     */
+    public List<Long> search(long spaceId, String query, int limit) {
+        var terms = terms(query);
+        if (terms.isEmpty()) {
+            throw new IllegalArgumentException("query has no searchable terms");
+        }
+
+        List<Long> results;
+        do {
+            SpaceIndex index;
+            synchronized (spaces) {
+                index = spaces.computeIfAbsent(spaceId, SpaceIndex::new);
+            }
+            results = index.search(terms, limit);
+        } while (results == null);
+        evictColdSpaces();
+        return results;
+    }
+
+    public long usedBytes() {
+        return usedBytes.get();
+    }
+
+    // Posts to a space that is not indexed are left for the database read on its next search.
+    private SpaceIndex loaded(long spaceId) {
+        synchronized (spaces) {
+            return spaces.get(spaceId);
+        }
+    }
+
+    private void evictColdSpaces() {
+        while (usedBytes.get() > maxBytes) {
+            SpaceIndex eldest;
+            synchronized (spaces) {
+                var it = spaces.values().iterator();
+                if (!it.hasNext()) {
+                    return;
+                }
+                eldest = it.next();
+                it.remove();
+            }
+            eldest.evict();
+        }
+    }
+
+    static Set<String> terms(String text) {
+        var terms = new LinkedHashSet<String>();
+        for (var term : text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+            if (!term.isEmpty() && term.length() <= MAX_TERM_LENGTH) {
+                terms.add(term);
+            }
+        }
+        return terms;
+    }
+
+    private class SpaceIndex {
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+        private final Map<String, Postings> postings = new HashMap<>();
+        private final long spaceId;
+        private boolean loaded;
+        private boolean evicted;
+        private long bytes;
+
+        SpaceIndex(long spaceId) {
+            this.spaceId = spaceId;
+        }
+
+        void add(int msgId, Set<String> terms) {
+            lock.writeLock().lock();
+            try {
+                if (!evicted) {
+                    index(msgId, terms);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        void remove(int msgId, Set<String> terms) {
+            lock.writeLock().lock();
+            try {
+                for (var term : terms) {
+                    var list = postings.get(term);
+                    if (list != null && list.remove(msgId) && list.size == 0) {
+                        postings.remove(term);
+                        release(TERM_OVERHEAD_BYTES + list.bytes());
+                    }
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        void evict() {
+            lock.writeLock().lock();
+            try {
+                evicted = true;
+                postings.clear();
+                release(bytes);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        // Runs with the write lock held, so that posts and deletes made while the space is read wait for it and
+        // are applied on top.
+        private void load() {
+            archive.forEach(spaceId, msg -> index(Math.toIntExact(msg.getMsgId()), terms(msg.getMsgText())));
+            findSpaceMessages.executeQuery(rows -> {
+                while (rows.next()) {
+                    index(rows.getInt("msg_id"), terms(rows.getString("msg_text")));
+                }
+                return null;
+            }, spaceId);
+            loaded = true;
+        }
+
+        private void index(int msgId, Set<String> terms) {
+            for (var term : terms) {
+                var list = postings.get(term);
+                if (list == null) {
+                    list = new Postings();
+                    postings.put(term, list);
+                    charge(TERM_OVERHEAD_BYTES + list.bytes());
+                }
+                var before = list.bytes();
+                list.add(msgId);
+                charge(list.bytes() - before);
+            }
+        }
+
+        private void charge(long size) {
+            bytes += size;
+            usedBytes.addAndGet(size);
+        }
+
+        private void release(long size) {
+            bytes -= size;
+            usedBytes.addAndGet(-size);
+        }
+
+        /**
+         * Returns null if the index was evicted before it could be searched.
+         */
+        List<Long> search(Set<String> terms, int limit) {
+            lock.writeLock().lock();
+            try {
+                if (!loaded && !evicted) {
+                    load();
+                }
+                lock.readLock().lock();
+            } finally {
+                lock.writeLock().unlock();
+            }
+
+            try {
+                if (evicted) {
+                    return null;
+                }
+
+                var lists = new ArrayList<Postings>(terms.size());
+                for (var term : terms) {
+                    var list = postings.get(term);
+                    if (list == null) {
+                        return List.of();
+                    }
+                    lists.add(list);
+                }
+                lists.sort(Comparator.comparingInt(list -> list.size));
+
+                var smallest = lists.get(0);
+                var results = new ArrayList<Long>(Math.min(limit, smallest.size));
+                candidates: for (var i = smallest.size - 1; i >= 0 && results.size() < limit; i--) {
+                    var msgId = smallest.ids[i];
+                    for (var j = 1; j < lists.size(); j++) {
+                        if (!lists.get(j).contains(msgId)) {
+                            continue candidates;
+                        }
+                    }
+                    results.add((long) msgId);
+                }
+                return results;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+    }
+
+    private static class Postings {
+        private int[] ids = new int[4];
+        private int size;
+
+        void add(int msgId) {
+            if (size > 0 && ids[size - 1] >= msgId) {
+                var pos = Arrays.binarySearch(ids, 0, size, msgId);
+                if (pos >= 0) {
+                    return;
+                }
+                insertAt(-pos - 1, msgId);
+            } else {
+                insertAt(size, msgId);
+            }
+        }
+
+        boolean remove(int msgId) {
+            var pos = Arrays.binarySearch(ids, 0, size, msgId);
+            if (pos < 0) {
+                return false;
+            }
+            System.arraycopy(ids, pos + 1, ids, pos, size - pos - 1);
+            size--;
+            return true;
+        }
+
+        long bytes() {
+            return 4L * ids.length;
+        }
+
+        boolean contains(int msgId) {
+            return Arrays.binarySearch(ids, 0, size, msgId) >= 0;
+        }
+
+        private void insertAt(int pos, int msgId) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            System.arraycopy(ids, pos, ids, pos + 1, size - pos);
+            ids[pos] = msgId;
+            size++;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.manning.apisecurityinaction.controller;
+
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import org.json.JSONObject;
+
+import spark.Request;
+import spark.Response;
+
+public class Metrics {
+    private final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Supplier<? extends Number>> gauges = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<>();
+
+    public LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, n -> new LongAdder());
+    }
+
+    public void gauge(String name, Supplier<? extends Number> value) {
+        gauges.put(name, value);
+    }
+
+    public Timer timer(String name) {
+        return timers.computeIfAbsent(name, n -> new Timer());
+    }
+
+    public JSONObject readMetrics(Request request, Response response) {
+        var counterValues = new TreeMap<String, Object>();
+        counters.forEach((name, counter) -> counterValues.put(name, counter.sum()));
+
+        var gaugeValues = new TreeMap<String, Object>();
+        gauges.forEach((name, gauge) -> gaugeValues.put(name, gauge.get()));
+
+        var timerValues = new TreeMap<String, Object>();
+        timers.forEach((name, timer) -> timerValues.put(name, timer.toJson()));
+
+        response.status(200);
+        return new JSONObject()
+                .put("counters", new JSONObject(counterValues))
+                .put("gauges", new JSONObject(gaugeValues))
+                .put("timers", new JSONObject(timerValues));
+    }
+
+    /**
+     * Latency histogram with power-of-two microsecond buckets. Percentiles are reported as the upper bound of
+     * the bucket they fall in.
+     */
+    public static class Timer {
+        private static final int BUCKETS = 40;
+        private final LongAdder[] buckets = new LongAdder[BUCKETS];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Long::max, 0);
+
+        private Timer() {
+            for (var i = 0; i < BUCKETS; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public void record(long nanos) {
+            var micros = Math.max(0, nanos / 1000);
+            buckets[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros))].increment();
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        public long totalNanos() {
+            return totalNanos.sum();
+        }
+
+        JSONObject toJson() {
+            var total = count.sum();
+            return new JSONObject()
+                    .put("count", total)
+                    .put("mean_ms", total == 0 ? 0.0 : totalNanos.sum() / 1e6 / total)
+                    .put("max_ms", maxNanos.get() / 1e6)
+                    .put("p50_ms", percentile(total, 0.50))
+                    .put("p90_ms", percentile(total, 0.90))
+                    .put("p99_ms", percentile(total, 0.99));
+        }
+
+        private double percentile(long total, double quantile) {
+            var target = (long) Math.ceil(total * quantile);
+            var seen = 0L;
+            for (var i = 0; i < BUCKETS; i++) {
+                seen += buckets[i].sum();
+                if (seen >= target && seen > 0) {
+                    return (1L << i) / 1e3;
+                }
+            }
+            return 0.0;
+        }
+    }
+}
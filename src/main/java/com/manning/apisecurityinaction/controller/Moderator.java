@@ -1,26 +1,181 @@
 package com.manning.apisecurityinaction.controller;
 
-import org.dalesbred.Database;
+import static spark.Spark.halt;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
 import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.manning.apisecurityinaction.Queries;
+import com.manning.apisecurityinaction.Queries.Query;
 
 import spark.Request;
 import spark.Response;
 
 public class Moderator {
-    private final Database database;
+    private static final Logger logger = LoggerFactory.getLogger(Moderator.class);
+    private static final int MAX_BULK_IDS = 1000;
+    private static final int PURGE_BATCH_SIZE = 500;
+    private static final int MAX_PURGE_BATCHES = 20;
+    private final Queries queries;
+    private final RecentMessageCache recentMessages;
+    private final MessageIndex messageIndex;
+    private final MessageArchive messageArchive;
+    private final Query findText;
+    private final Query findByAuthor;
+    private final Query markDeleted;
+    private final Query purgeDeleted;
 
-    public Moderator(Database database) {
-        this.database = database;
+    public Moderator(Queries queries, RecentMessageCache recentMessages, MessageIndex messageIndex,
+            MessageArchive messageArchive, ScheduledExecutorService scheduler) {
+        this.queries = queries;
+        this.recentMessages = recentMessages;
+        this.messageIndex = messageIndex;
+        this.messageArchive = messageArchive;
+        this.findText = queries.define("messages.find_text", "SELECT msg_text FROM messages " +
+                "WHERE msg_id = ? AND space_id = ? AND deleted_at IS NULL");
+        this.findByAuthor = queries.define("messages.find_by_author", "SELECT msg_id, msg_text FROM messages " +
+                "WHERE space_id = ? AND author = ? AND msg_time >= ? AND msg_time <= ? " +
+                "AND deleted_at IS NULL " +
+                "LIMIT ?");
+        this.markDeleted = queries.define("messages.mark_deleted", "UPDATE messages SET deleted_at = ? " +
+                "WHERE msg_id = ? AND space_id = ? AND deleted_at IS NULL");
+        this.purgeDeleted = queries.define("messages.purge_deleted",
+                "DELETE FROM messages WHERE deleted_at IS NOT NULL LIMIT ?");
+
+        scheduler.scheduleWithFixedDelay(() -> {
+            // An exception escaping a scheduled task would stop the purger for good.
+            try {
+                purgeDeleted();
+            } catch (RuntimeException e) {
+                logger.warn("Unable to purge deleted messages", e);
+            }
+        }, 30, 30, TimeUnit.SECONDS);
     }
 
     public JSONObject deletePost(Request request, Response response) {
         var msgId = Long.parseLong(request.params(":msgId"));
         var spaceId = Long.parseLong(request.params(":spaceId"));
 
-        database.updateUnique("DELETE FROM messages " +
-                "WHERE msg_id = ? AND space_id = ?",
-                msgId, spaceId);
+        var text = findText.findOptional(String.class, msgId, spaceId);
+        if (text.isPresent()) {
+            markDeleted(spaceId, List.of(new DeletedMessage(msgId, text.get())));
+        } else {
+            // Archived messages are no longer in the database, so they are deleted from the archive straight away.
+            var archived = messageArchive.remove(spaceId, msgId).orElse(null);
+            if (archived == null) {
+                halt(404);
+            }
+            messageIndex.remove(spaceId, msgId, archived.getMsgText());
+        }
         response.status(204);
         return new JSONObject();
     }
+
+    public JSONObject deletePosts(Request request, Response response) {
+        var json = new JSONObject(request.body());
+        var spaceId = Long.parseLong(request.params(":spaceId"));
+
+        var deleted = 0;
+        if (json.has("ids")) {
+            var ids = json.getJSONArray("ids");
+            if (ids.length() == 0 || ids.length() > MAX_BULK_IDS) {
+                throw new IllegalArgumentException("must delete between 1 and " + MAX_BULK_IDS + " messages");
+            }
+
+            var args = new ArrayList<Object>(ids.length() + 1);
+            args.add(spaceId);
+            for (var i = 0; i < ids.length(); i++) {
+                args.add(ids.getLong(i));
+            }
+            var messages = queries.dynamic("messages.find_by_ids", "SELECT msg_id, msg_text FROM messages " +
+                    "WHERE space_id = ? AND deleted_at IS NULL AND msg_id IN (" +
+                    String.join(", ", Collections.nCopies(ids.length(), "?")) + ")")
+                    .findAll(DeletedMessage::fromRow, args.toArray());
+            markDeleted(spaceId, messages);
+            deleted = messages.size();
+
+            // As in deletePost, ids no longer in the database may be in the archive
+            var found = messages.stream().map(message -> message.msgId).collect(Collectors.toSet());
+            for (var i = 0; i < ids.length(); i++) {
+                var msgId = ids.getLong(i);
+                if (found.add(msgId)) {
+                    var archived = messageArchive.remove(spaceId, msgId);
+                    if (archived.isPresent()) {
+                        messageIndex.remove(spaceId, msgId, archived.get().getMsgText());
+                        deleted++;
+                    }
+                }
+            }
+        } else {
+            var author = json.getString("author");
+            var from = Instant.parse(json.getString("from"));
+            var to = json.has("to") ? Instant.parse(json.getString("to")) : Instant.now();
+
+            // A time range can cover any number of messages, so they are marked a batch at a time. Marked
+            // messages no longer match, so each batch picks up where the last one stopped.
+            List<DeletedMessage> batch;
+            do {
+                batch = findByAuthor.findAll(DeletedMessage::fromRow, spaceId, author, from, to, MAX_BULK_IDS);
+                markDeleted(spaceId, batch);
+                deleted += batch.size();
+            } while (batch.size() == MAX_BULK_IDS);
+        }
+
+        response.status(200);
+        return new JSONObject().put("deleted", deleted);
+    }
+
+    public void purgeDeleted() {
+        for (var i = 0; i < MAX_PURGE_BATCHES; i++) {
+            var purged = purgeDeleted.update(PURGE_BATCH_SIZE);
+            if (purged < PURGE_BATCH_SIZE) {
+                return;
+            }
+        }
+    }
+
+    private void markDeleted(long spaceId, List<DeletedMessage> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+
+        var deletedAt = Instant.now();
+        var rows = new ArrayList<List<?>>(messages.size());
+        for (var message : messages) {
+            rows.add(List.of(deletedAt, message.msgId, spaceId));
+        }
+        queries.withVoidTransaction(tx -> {
+            markDeleted.updateBatch(rows);
+        });
+
+        for (var message : messages) {
+            recentMessages.remove(spaceId, message.msgId);
+            messageIndex.remove(spaceId, message.msgId, message.text);
+        }
+    }
+
+    private static class DeletedMessage {
+        private final long msgId;
+        private final String text;
+
+        DeletedMessage(long msgId, String text) {
+            this.msgId = msgId;
+            this.text = text;
+        }
+
+        static DeletedMessage fromRow(ResultSet row) throws SQLException {
+            return new DeletedMessage(row.getLong("msg_id"), row.getString("msg_text"));
+        }
+    }
 }
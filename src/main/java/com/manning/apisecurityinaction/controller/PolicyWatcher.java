@@ -0,0 +1,57 @@
+package com.manning.apisecurityinaction.controller;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Polls a policy file and reloads it into an {@link ABACAccessController} on a background thread whenever it
+ * changes. A policy that fails to compile or validate is counted and the current one is kept.
+ */
+public class PolicyWatcher {
+    private static final Logger logger = LoggerFactory.getLogger(PolicyWatcher.class);
+
+    private final Path file;
+    private final ABACAccessController accessController;
+    private final Metrics.Timer reloads;
+    private final LongAdder failures;
+    private FileTime lastModified;
+
+    public PolicyWatcher(Path file, ABACAccessController accessController, Metrics metrics) {
+        this.file = file;
+        this.accessController = accessController;
+        this.reloads = metrics.timer("abac.reload");
+        this.failures = metrics.counter("abac.reload.failures");
+    }
+
+    public void start(ScheduledExecutorService scheduler, Duration interval) {
+        scheduler.scheduleWithFixedDelay(this::checkForChanges, 0, interval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private void checkForChanges() {
+        // Anything escaping a scheduled task cancels it, so even errors from compiling rules are caught here.
+        try {
+            var modified = Files.getLastModifiedTime(file);
+            if (modified.equals(lastModified)) {
+                return;
+            }
+
+            // Only a successful reload marks the file as seen, so one that fails, e.g. because the file was
+            // still being written, is retried on the next poll.
+            var start = System.nanoTime();
+            accessController.reload(Files.readString(file));
+            reloads.record(System.nanoTime() - start);
+            lastModified = modified;
+        } catch (Throwable e) {
+            failures.increment();
+            logger.warn("Keeping current policy, unable to reload {}", file, e);
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package com.manning.apisecurityinaction.controller;
+
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import com.manning.apisecurityinaction.Queries;
+import com.manning.apisecurityinaction.controller.SpaceController.Message;
+
+public class RecentMessageCache {
+    private static final long ENTRY_OVERHEAD_BYTES = 96;
+    private static final Comparator<Message> BY_TIME_AND_ID = Comparator.comparing(Message::getMsgTime)
+            .thenComparingLong(Message::getMsgId);
+
+    private final Queries.Query findLatest;
+    private final MessageArchive messageArchive;
+    private final int ringCapacity;
+    private final long maxBytes;
+    private final Map<Long, Ring> rings = new LinkedHashMap<>(16, 0.75f, true);
+    private final AtomicLong usedBytes = new AtomicLong();
+
+    public RecentMessageCache(Queries queries, MessageArchive messageArchive, int ringCapacity, long maxBytes) {
+        this.findLatest = queries.define("recent_messages.seed", "SELECT msg_id, space_id, author, msg_time, msg_text " +
+                "FROM messages " +
+                "WHERE space_id = ? AND deleted_at IS NULL " +
+                "ORDER BY msg_time DESC, msg_id DESC " +
+                "LIMIT ?");
+        this.messageArchive = messageArchive;
+        this.ringCapacity = ringCapacity;
+        this.maxBytes = maxBytes;
+    }
+
+    public void add(Message message) {
+        var ring = ringOrNew(message.getSpaceId());
+        ring.seed(message.getSpaceId());
+        ring.add(message);
+        evictColdSpaces();
+    }
+
+    public void remove(long spaceId, long msgId) {
+        var ring = ring(spaceId);
+        if (ring != null) {
+            ring.remove(msgId);
+        }
+    }
+
+    public Optional<Message> find(long spaceId, long msgId) {
+        var ring = ring(spaceId);
+        return ring == null ? Optional.empty() : ring.find(msgId);
+    }
+
+    /**
+     * Returns up to {@code limit} messages ordered by (msg_time, msg_id) that come strictly after the given
+     * position, or empty if the ring for the space does not cover that position.
+     */
+    public Optional<List<Message>> findAfter(long spaceId, Instant msgTime, long msgId, int limit) {
+        var ring = ringOrNew(spaceId);
+        ring.seed(spaceId);
+        var messages = ring.findAfter(msgTime, msgId, limit);
+        evictColdSpaces();
+        return messages;
+    }
+
+    public long usedBytes() {
+        return usedBytes.get();
+    }
+
+    private Ring ring(long spaceId) {
+        synchronized (rings) {
+            return rings.get(spaceId);
+        }
+    }
+
+    private Ring ringOrNew(long spaceId) {
+        synchronized (rings) {
+            return rings.computeIfAbsent(spaceId, id -> new Ring());
+        }
+    }
+
+    private void evictColdSpaces() {
+        while (usedBytes.get() > maxBytes) {
+            Ring eldest;
+            synchronized (rings) {
+                var it = rings.values().iterator();
+                if (!it.hasNext()) {
+                    return;
+                }
+                eldest = it.next();
+                it.remove();
+            }
+            eldest.evict();
+        }
+    }
+
+    private static long sizeOf(Message message) {
+        return ENTRY_OVERHEAD_BYTES + 2L * (message.getAuthor().length() + message.getMsgText().length());
+    }
+
+    private class Ring {
+        private final ArrayDeque<Message> messages = new ArrayDeque<>(ringCapacity);
+        // The ring holds every message positioned strictly after (coveredTime, coveredId)
+        private Instant coveredTime = Instant.now();
+        private long coveredId = Long.MAX_VALUE;
+        private long bytes;
+        private boolean seeded;
+        private boolean evicted;
+        private long removals;
+
+        synchronized void add(Message message) {
+            if (evicted) {
+                return;
+            }
+            if (messages.stream().anyMatch(cached -> cached.getMsgId() == message.getMsgId())) {
+                return;
+            }
+
+            if (messages.size() == ringCapacity) {
+                var oldest = messages.removeFirst();
+                release(oldest);
+                if (Message.compare(oldest.getMsgTime(), oldest.getMsgId(), coveredTime, coveredId) > 0) {
+                    coveredTime = oldest.getMsgTime();
+                    coveredId = oldest.getMsgId();
+                }
+            }
+
+            append(message);
+        }
+
+        /**
+         * Loads the latest messages of the space, so the ring covers them from its first use rather than only
+         * those posted since. The ring covers the whole space if it holds all of them, unless older messages
+         * have been moved to the archive.
+         * <p>
+         * The query runs without holding the ring, so that readers and writers of the space do not wait on the
+         * database. A seed that raced with a delete is dropped, as it may hold the deleted message, and tried
+         * again on the next use.
+         */
+        void seed(long spaceId) {
+            long removalsBefore;
+            synchronized (this) {
+                if (seeded || evicted) {
+                    return;
+                }
+                removalsBefore = removals;
+            }
+
+            var latest = findLatest.findAll(Message.class, spaceId, ringCapacity);
+            var coversSpace = latest.size() < ringCapacity && !messageArchive.hasArchived(spaceId);
+
+            synchronized (this) {
+                if (!seeded && !evicted && removals == removalsBefore) {
+                    merge(latest, coversSpace);
+                }
+            }
+        }
+
+        private void merge(List<Message> latest, boolean coversSpace) {
+            seeded = true;
+            if (coversSpace) {
+                coveredTime = Instant.MIN;
+                coveredId = Long.MIN_VALUE;
+            } else if (!latest.isEmpty()) {
+                var oldest = latest.get(latest.size() - 1);
+                coveredTime = oldest.getMsgTime();
+                coveredId = oldest.getMsgId();
+            }
+
+            // Messages posted while the query ran are already in the ring, and may be in its results too
+            var merged = new ArrayList<>(messages);
+            for (var message : latest) {
+                if (merged.stream().noneMatch(cached -> cached.getMsgId() == message.getMsgId())) {
+                    merged.add(message);
+                }
+            }
+            merged.sort(BY_TIME_AND_ID);
+
+            messages.forEach(this::release);
+            messages.clear();
+            var skip = Math.max(0, merged.size() - ringCapacity);
+            for (var i = 0; i < merged.size(); i++) {
+                var message = merged.get(i);
+                if (i >= skip) {
+                    append(message);
+                } else if (Message.compare(message.getMsgTime(), message.getMsgId(), coveredTime, coveredId) > 0) {
+                    coveredTime = message.getMsgTime();
+                    coveredId = message.getMsgId();
+                }
+            }
+        }
+
+        private void append(Message message) {
+            messages.addLast(message);
+            var size = sizeOf(message);
+            bytes += size;
+            usedBytes.addAndGet(size);
+        }
+
+        synchronized void remove(long msgId) {
+            removals++;
+            var it = messages.iterator();
+            while (it.hasNext()) {
+                var message = it.next();
+                if (message.getMsgId() == msgId) {
+                    it.remove();
+                    release(message);
+                    return;
+                }
+            }
+        }
+
+        synchronized Optional<Message> find(long msgId) {
+            return messages.stream().filter(message -> message.getMsgId() == msgId).findFirst();
+        }
+
+        synchronized Optional<List<Message>> findAfter(Instant msgTime, long msgId, int limit) {
+            if (evicted || Message.compare(msgTime, msgId, coveredTime, coveredId) < 0) {
+                return Optional.empty();
+            }
+
+            return Optional.of(messages.stream()
+                    .filter(message -> Message.compare(message.getMsgTime(), message.getMsgId(), msgTime, msgId) > 0)
+                    .sorted(BY_TIME_AND_ID)
+                    .limit(limit)
+                    .collect(Collectors.toCollection(ArrayList::new)));
+        }
+
+        synchronized void evict() {
+            evicted = true;
+            messages.clear();
+            usedBytes.addAndGet(-bytes);
+            bytes = 0;
+        }
+
+        private void release(Message message) {
+            var size = sizeOf(message);
+            bytes -= size;
+            usedBytes.addAndGet(-size);
+        }
+    }
+}
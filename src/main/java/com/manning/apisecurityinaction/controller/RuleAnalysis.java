@@ -0,0 +1,216 @@
+package com.manning.apisecurityinaction.controller;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.drools.core.base.ClassObjectType;
+import org.drools.core.definitions.rule.impl.RuleImpl;
+import org.drools.core.rule.GroupElement;
+import org.drools.core.rule.RuleConditionElement;
+import org.drools.core.rule.constraint.MvelConstraint;
+import org.kie.api.KieBase;
+
+import com.manning.apisecurityinaction.controller.DroolsAccessController.Action;
+import com.manning.apisecurityinaction.controller.DroolsAccessController.Environment;
+import com.manning.apisecurityinaction.controller.DroolsAccessController.Resource;
+import com.manning.apisecurityinaction.controller.DroolsAccessController.Subject;
+
+/**
+ * Works out which request attributes the rules in a rule base read by inspecting the constraints of their
+ * patterns. Only {@code this["name"]} lookups on the four attribute facts are understood. A rule using
+ * anything else, such as eval, from, bindings or timers, makes the rule base opaque.
+ * <p>
+ * It also works out which requests each rule can match. The scope comes from top-level constraints comparing
+ * {@code this["method"]} on Action with string literals, and {@code this["path"]} on Resource with literals,
+ * either for equality or through startsWith. A rule without such constraints, or whose constraints on method or
+ * path take another form, is scoped to every method or path.
+ */
+class RuleAnalysis {
+    static final List<Class<?>> FACT_TYPES = List.of(Subject.class, Resource.class, Action.class, Environment.class);
+
+    private static final Pattern ATTRIBUTE = Pattern.compile("this\\[\"(\\w+)\"\\](\\.hour\\b)?");
+    private static final Pattern THIS = Pattern.compile("\\bthis\\b");
+    private static final Pattern METHOD = Pattern.compile("this\\[\"method\"\\] == \"([^\"]*)\"");
+    private static final Pattern PATH = Pattern.compile(
+            "this\\[\"path\"\\] == \"([^\"]*)\"|\\(\\(String\\) this\\[\"path\"\\]\\)\\.startsWith\\(\"([^\"]*)\"\\)");
+    private static final int ACTION = FACT_TYPES.indexOf(Action.class);
+    private static final int RESOURCE = FACT_TYPES.indexOf(Resource.class);
+
+    private final Set<String> whole = new HashSet<>();
+    private final Set<String> hourOnly = new HashSet<>();
+    private final List<Attribute> attributes = new ArrayList<>();
+    private final Map<String, List<String>> scopes = new HashMap<>();
+    private boolean opaque;
+
+    RuleAnalysis(KieBase kieBase) {
+        for (var kiePackage : kieBase.getKiePackages()) {
+            for (var rule : kiePackage.getRules()) {
+                analyse((RuleImpl) rule);
+            }
+        }
+
+        for (var name : whole) {
+            attributes.add(new Attribute(name, false));
+        }
+        for (var name : hourOnly) {
+            if (!whole.contains(name)) {
+                attributes.add(new Attribute(name, true));
+            }
+        }
+    }
+
+    /**
+     * Returns true when every rule could be analysed, so a decision depends only on {@link #attributes()}.
+     */
+    boolean isTransparent() {
+        return !opaque;
+    }
+
+    List<Attribute> attributes() {
+        return attributes;
+    }
+
+    /**
+     * Returns the path prefixes each rule can match, by request method. Rules that can match any method are
+     * listed under {@code *}, and a rule that can match any path has the empty prefix.
+     */
+    Map<String, List<String>> scopes() {
+        return scopes;
+    }
+
+    private void addScope(RuleImpl rule) {
+        Set<String> methods = null;
+        Set<String> paths = null;
+        var lhs = rule.getLhs();
+        var patterns = lhs.isAnd() ? lhs.getChildren() : List.<RuleConditionElement>of();
+        for (var element : patterns) {
+            if (!(element instanceof org.drools.core.rule.Pattern)) {
+                continue;
+            }
+            var pattern = (org.drools.core.rule.Pattern) element;
+            var fact = factOf(pattern);
+            if (pattern.getSource() != null || (fact != ACTION && fact != RESOURCE)) {
+                continue;
+            }
+
+            for (var constraint : pattern.getConstraints()) {
+                if (!(constraint instanceof MvelConstraint)) {
+                    continue;
+                }
+                var expression = ((MvelConstraint) constraint).getExpression();
+                if (fact == ACTION) {
+                    methods = narrow(methods, literals(expression, METHOD));
+                } else {
+                    paths = narrow(paths, literals(expression, PATH));
+                }
+            }
+        }
+
+        for (var method : methods == null ? Set.of("*") : methods) {
+            scopes.computeIfAbsent(method, m -> new ArrayList<>()).addAll(paths == null ? Set.of("") : paths);
+        }
+    }
+
+    /**
+     * Returns the literals of an expression that is nothing but alternatives matching {@code alternative}, or
+     * null when the expression has any other form.
+     */
+    private static Set<String> literals(String expression, Pattern alternative) {
+        var values = new HashSet<String>();
+        for (var part : expression.split("\\|\\|")) {
+            var matcher = alternative.matcher(part.strip());
+            if (!matcher.matches()) {
+                return null;
+            }
+            values.add(matcher.group(1) != null ? matcher.group(1) : matcher.group(2));
+        }
+        return values;
+    }
+
+    private static Set<String> narrow(Set<String> current, Set<String> constraint) {
+        if (constraint == null) {
+            return current;
+        }
+        if (current == null) {
+            return constraint;
+        }
+        current.retainAll(constraint);
+        return current;
+    }
+
+    private void analyse(RuleImpl rule) {
+        addScope(rule);
+        if (rule.getTimer() != null || rule.getCalendars() != null || rule.getDateEffective() != null
+                || rule.getDateExpires() != null || !rule.getDeclarations().isEmpty()) {
+            opaque = true;
+            return;
+        }
+        analyse(rule.getLhs());
+    }
+
+    private void analyse(RuleConditionElement element) {
+        if (element instanceof GroupElement) {
+            for (var child : element.getNestedElements()) {
+                analyse(child);
+            }
+        } else if (element instanceof org.drools.core.rule.Pattern) {
+            var pattern = (org.drools.core.rule.Pattern) element;
+            var fact = factOf(pattern);
+            if (fact < 0 || pattern.getSource() != null) {
+                opaque = true;
+                return;
+            }
+            for (var constraint : pattern.getConstraints()) {
+                if (!(constraint instanceof MvelConstraint)) {
+                    opaque = true;
+                    return;
+                }
+                analyse(fact, ((MvelConstraint) constraint).getExpression());
+            }
+        } else {
+            opaque = true;
+        }
+    }
+
+    private void analyse(int fact, String expression) {
+        var lookups = 0;
+        var matcher = ATTRIBUTE.matcher(expression);
+        while (matcher.find()) {
+            lookups++;
+            var key = fact + ":" + matcher.group(1);
+            (matcher.group(2) == null ? whole : hourOnly).add(key);
+        }
+        if (THIS.matcher(expression).results().count() != lookups) {
+            opaque = true;
+        }
+    }
+
+    static int factOf(org.drools.core.rule.Pattern pattern) {
+        if (!(pattern.getObjectType() instanceof ClassObjectType)) {
+            return -1;
+        }
+        return FACT_TYPES.indexOf(((ClassObjectType) pattern.getObjectType()).getClassType());
+    }
+
+    /**
+     * An attribute read by the rules, identified by the index of its fact in {@link #FACT_TYPES} and its name.
+     * When the rules only read its hour, only the hour needs to be part of a cache key.
+     */
+    static class Attribute {
+        final int fact;
+        final String name;
+        final boolean hourOnly;
+
+        private Attribute(String key, boolean hourOnly) {
+            var separator = key.indexOf(':');
+            this.fact = Integer.parseInt(key.substring(0, separator));
+            this.name = key.substring(separator + 1);
+            this.hourOnly = hourOnly;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.manning.apisecurityinaction.controller;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import org.drools.core.impl.KnowledgeBaseFactory;
+import org.drools.core.util.DroolsStreamUtils;
+import org.kie.api.KieBase;
+import org.kie.api.KieServices;
+import org.kie.api.io.ResourceType;
+import org.kie.internal.builder.KnowledgeBuilderFactory;
+import org.kie.internal.io.ResourceFactory;
+
+/**
+ * Compiles DRL into a rule base. The build runs {@link #main} to compile accessrules.drl and write the
+ * serialized rule base to accessrules.kbase next to the classes, so the server only needs drools-core to load
+ * it; drools-compiler is needed at runtime only to reload rules from source.
+ */
+public class RuleBaseCompiler {
+
+    public static KieBase compile(String source) {
+        if (KieServices.get() == null) {
+            throw new IllegalStateException("compiling rules requires drools-compiler on the classpath");
+        }
+
+        var builder = KnowledgeBuilderFactory.newKnowledgeBuilder();
+        builder.add(ResourceFactory.newByteArrayResource(source.getBytes(UTF_8)), ResourceType.DRL);
+        if (builder.hasErrors()) {
+            throw new IllegalArgumentException("invalid rules: " + builder.getErrors());
+        }
+
+        // A bare knowledge base rather than one from a KieContainer, which would reference drools-compiler
+        // classes when serialized.
+        var kieBase = KnowledgeBaseFactory.newKnowledgeBase();
+        kieBase.addPackages(builder.getKnowledgePackages());
+        return kieBase;
+    }
+
+    public static void main(String... args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("usage: RuleBaseCompiler <rules.drl> <output>");
+            System.exit(1);
+        }
+
+        var kieBase = compile(Files.readString(Paths.get(args[0])));
+        var output = Paths.get(args[1]);
+        Files.createDirectories(output.toAbsolutePath().getParent());
+        try (var out = Files.newOutputStream(output)) {
+            DroolsStreamUtils.streamOut(out, kieBase);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.manning.apisecurityinaction.controller;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.util.Optional;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.manning.apisecurityinaction.Queries;
+import com.manning.apisecurityinaction.controller.SpaceController.Space;
+
+public class SpaceCache {
+    private final Cache<Long, Space> spaces;
+    private final BloomFilter<CharSequence> names;
+
+    public SpaceCache(long maxSpaces, long expectedNames) {
+        this.spaces = CacheBuilder.newBuilder().maximumSize(maxSpaces).recordStats().build();
+        this.names = BloomFilter.create(Funnels.stringFunnel(UTF_8), expectedNames, 0.01);
+    }
+
+    public void loadNames(Queries queries) {
+        queries.define("spaces.names", "SELECT name FROM spaces").findAll(String.class).forEach(names::put);
+    }
+
+    public Optional<Space> get(long spaceId) {
+        return Optional.ofNullable(spaces.getIfPresent(spaceId));
+    }
+
+    public void put(Space space) {
+        spaces.put(space.getSpaceId(), space);
+        names.put(space.getName());
+    }
+
+    /**
+     * Returns false if no space with this name exists. A true result must be confirmed against the database.
+     */
+    public boolean mightContainName(String name) {
+        return names.mightContain(name);
+    }
+
+    public long size() {
+        return spaces.size();
+    }
+
+    public double hitRate() {
+        return spaces.stats().hitRate();
+    }
+}
@@ -1,30 +1,101 @@
 package com.manning.apisecurityinaction.controller;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static spark.Spark.halt;
+
+import java.io.IOException;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.time.Duration;
 import java.time.Instant;
+import java.time.format.DateTimeParseException;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
-import org.dalesbred.Database;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import com.manning.apisecurityinaction.Queries;
+import com.manning.apisecurityinaction.Queries.Query;
 import com.manning.apisecurityinaction.controller.UserController.Permission;
+import com.manning.apisecurityinaction.token.Base64Url;
+import com.manning.apisecurityinaction.token.MacaroonTokenStore;
 
 import spark.Request;
 import spark.Response;
 
 public class SpaceController {
     private static final Set<String> DEFINED_ROLES = Set.of("owner", "moderator", "member", "observer");
-    private final Database database;
+    private static final int DEFAULT_PAGE_SIZE = 100;
+    private static final int MAX_PAGE_SIZE = 1000;
+    private static final int MAX_BULK_MESSAGES = 500;
+    private static final Duration STREAM_HEARTBEAT = Duration.ofSeconds(15);
+    private final Queries queries;
     private final CapabilityController capCtrl;
-
-    public SpaceController(Database database, CapabilityController capCtrl) {
-        this.database = database;
+    private final TokenController tokenCtrl;
+    private final Duration maxStreamLifetime;
+    private final MessageHub messageHub;
+    private final RecentMessageCache recentMessages;
+    private final IdAllocator spaceIds;
+    private final IdAllocator msgIds;
+    private final MessageIndex messageIndex;
+    private final SpaceCache spaceCache;
+    private final MessageArchive messageArchive;
+    private final Query countSpacesByName;
+    private final Query insertSpace;
+    private final Query insertUserRole;
+    private final Query mergeGroupPermissions;
+    private final Query findSpace;
+    private final Query insertMessage;
+    private final Query countMessage;
+    private final Query findMessage;
+    private final Query findMessagesAfter;
+
+    public SpaceController(Queries queries, CapabilityController capCtrl, TokenController tokenCtrl,
+            Duration maxStreamLifetime, MessageHub messageHub, RecentMessageCache recentMessages,
+            IdAllocator spaceIds, IdAllocator msgIds, MessageIndex messageIndex, SpaceCache spaceCache,
+            MessageArchive messageArchive) {
+        this.queries = queries;
         this.capCtrl = capCtrl;
+        this.tokenCtrl = tokenCtrl;
+        this.maxStreamLifetime = maxStreamLifetime;
+        this.messageHub = messageHub;
+        this.recentMessages = recentMessages;
+        this.spaceIds = spaceIds;
+        this.msgIds = msgIds;
+        this.messageIndex = messageIndex;
+        this.spaceCache = spaceCache;
+        this.messageArchive = messageArchive;
+
+        this.countSpacesByName = queries.define("spaces.count_by_name", "SELECT COUNT(*) FROM spaces WHERE name = ?");
+        this.insertSpace = queries.define("spaces.insert",
+                "INSERT INTO spaces (space_id, name, owner) VALUES(?, ?, ?)");
+        this.insertUserRole = queries.define("user_roles.insert",
+                "INSERT INTO user_roles(space_id, user_id, role_id) VALUES(?, ?, ?)");
+        this.mergeGroupPermissions = queries.define("group_permissions.merge",
+                "MERGE INTO group_permissions(space_id, group_id, perms) KEY(space_id, group_id) VALUES(?, ?, ?)");
+        this.findSpace = queries.define("spaces.find", "SELECT space_id, name, owner " +
+                "FROM spaces " +
+                "WHERE space_id = ?");
+        this.insertMessage = queries.define("messages.insert",
+                "INSERT INTO messages(msg_id, author, space_id, msg_time, msg_text) VALUES(?, ?, ?, ?, ?)");
+        this.countMessage = queries.define("messages.count",
+                "SELECT COUNT(*) FROM messages WHERE msg_id = ? AND space_id = ? AND deleted_at IS NULL");
+        this.findMessage = queries.define("messages.find", "SELECT msg_id, space_id, author, msg_time, msg_text " +
+                "FROM messages " +
+                "WHERE msg_id = ? AND space_id = ? AND deleted_at IS NULL");
+        this.findMessagesAfter = queries.define("messages.find_after", "SELECT msg_id, msg_time " +
+                "FROM messages " +
+                "WHERE space_id = ? AND msg_time >= ? AND (msg_time > ? OR msg_id > ?) " +
+                "AND deleted_at IS NULL " +
+                "ORDER BY msg_time, msg_id " +
+                "LIMIT ?");
     }
 
     public JSONObject createSpace(Request request, Response response) throws SQLException {
@@ -40,13 +111,14 @@ public class SpaceController {
             throw new IllegalArgumentException("owner must match authenticated user");
         }
 
-        return database.withTransaction(tx -> {
-            var spaceId = database.findUniqueLong("SELECT NEXT VALUE FOR space_id_seq");
-            database.updateUnique("INSERT INTO spaces (space_id, name, owner) VALUES(?, ?, ?);", spaceId, spaceName,
-                    owner);
-            database.updateUnique("INSERT INTO user_roles (space_id, user_id, role_id) " +
-                    "VALUES(?, ?, ?);",
-                    spaceId, owner, "owner");
+        if (spaceCache.mightContainName(spaceName) && countSpacesByName.findUniqueInt(spaceName) > 0) {
+            throw new IllegalArgumentException("space name already exists");
+        }
+
+        var spaceId = spaceIds.nextId();
+        var result = queries.withTransaction(tx -> {
+            insertSpace.updateUnique(spaceId, spaceName, owner);
+            insertUserRole.updateUnique(spaceId, owner, "owner");
 
             var expiry = Duration.ofDays(100000);
             var spacePath = "/spaces/" + spaceId;
@@ -67,6 +139,8 @@ public class SpaceController {
                     .put("messages-rwd", msgsUri).put("messages-rw", msgsReadWriteUri)
                     .put("messages-r", msgsReadOnlyUri);
         });
+        spaceCache.put(new Space(spaceId, spaceName, owner));
+        return result;
     }
 
     public JSONObject addMember(Request request, Response response) {
@@ -79,10 +153,7 @@ public class SpaceController {
             throw new IllegalArgumentException("invalid role");
         }
 
-        database.updateUnique(
-                "INSERT INTO user_roles(space_id, user_id, role_id) " +
-                        "VALUES(?, ?, ?)",
-                spaceId, userToAdd, role);
+        insertUserRole.updateUnique(spaceId, userToAdd, role);
 
         response.status(200);
         return new JSONObject()
@@ -90,28 +161,61 @@ public class SpaceController {
                 .put("role", role);
     }
 
-    public JSONObject readSpace(Request request, Response response) {
+    public JSONObject addGroup(Request request, Response response) {
+        var json = new JSONObject(request.body());
         var spaceId = Long.parseLong(request.params(":spaceId"));
+        var groupId = json.getString("group");
+        var perms = Permission.fromString(json.getString("permissions")).toString();
+
+        if (!groupId.matches(UserController.USERNAME_PATTERN)) {
+            throw new IllegalArgumentException("invalid group");
+        }
+        if (perms.isEmpty()) {
+            throw new IllegalArgumentException("invalid permissions");
+        }
 
-        var space = database.findUnique(Space.class,
-                "SELECT space_id, name, owner " +
-                        "FROM spaces " +
-                        "WHERE space_id = ?",
-                spaceId);
+        mergeGroupPermissions.update(spaceId, groupId, perms);
+
+        response.status(200);
+        return new JSONObject()
+                .put("group", groupId)
+                .put("permissions", perms);
+    }
+
+    public Object readSpace(Request request, Response response) {
+        var spaceId = Long.parseLong(request.params(":spaceId"));
+        Permission perms = request.attribute(UserController.PERMS_ATTR_KEY);
+
+        // Looked up first so a deleted space is never revalidated.
+        var space = spaceCache.get(spaceId).orElseGet(() -> {
+            var loaded = findSpace.findUnique(Space.class, spaceId);
+            spaceCache.put(loaded);
+            return loaded;
+        });
+
+        var etag = Space.etag(spaceId, perms);
+        response.header("ETag", etag);
+        if (CachePolicy.ifNoneMatch(request, etag)) {
+            response.status(304);
+            return "";
+        }
 
         response.status(200);
 
         var expiry = Duration.ofDays(100000);
         var spacePath = "/spaces/" + spaceId;
         var msgPath = spacePath + "/messages";
-        Permission perms = request.attribute(UserController.PERMS_ATTR_KEY);
         var msgsUri = capCtrl.createUri(request, msgPath, perms, expiry);
 
         var spaceJson = new JSONObject().put("id", space.spaceId).put("name", space.name);
         return new JSONObject().put("space", spaceJson).put("messages", msgsUri);
     }
 
-    public JSONObject postMessage(Request request, Response response) {
+    public Object postMessage(Request request, Response response) {
+        if (request.body().trim().startsWith("[")) {
+            return postMessages(request, response);
+        }
+
         var json = new JSONObject(request.body());
         var userId = json.getString("author");
         if (!userId.equals(request.attribute(UserController.USERNAME_ATTR_KEY))) {
@@ -125,56 +229,251 @@ public class SpaceController {
 
         var spaceId = Long.parseLong(request.params(":spaceId"));
 
-        return database.withTransaction(tx -> {
-            var msgId = database.findUniqueLong("SELECT NEXT VALUE FOR msg_id_seq");
-            database.updateUnique(
-                    "INSERT INTO messages(msg_id, author, space_id, msg_time, msg_text) VALUES(? ,?, ?, current_timestamp, ?)",
-                    msgId, userId, spaceId, message);
+        var msgTime = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+        var msgId = msgIds.nextId();
+        insertMessage.updateUnique(msgId, userId, spaceId, msgTime, message);
+        recentMessages.add(new Message(msgId, spaceId, userId, msgTime, message));
+        messageIndex.add(spaceId, msgId, message);
+        messageHub.publish(spaceId, msgId);
+
+        response.status(201);
+        var msgPath = "/spaces/" + spaceId + "/messages/" + msgId;
+        var msgUri = capCtrl.createUri(request, msgPath, Permission.read.combine(Permission.write),
+                Duration.ofMinutes(5));
+        var msgReadOnlyUri = capCtrl.createUri(request, msgPath, Permission.read,
+                Duration.ofDays(365));
+
+        response.header("Location", msgPath);
+        return new JSONObject().put("uri", msgUri).put("uri-r", msgReadOnlyUri);
+    }
 
-            response.status(201);
-            var msgPath = "/spaces/" + spaceId + "/messages/" + msgId;
-            var msgUri = capCtrl.createUri(request, msgPath, Permission.read.combine(Permission.write),
-                    Duration.ofMinutes(5));
-            var msgReadOnlyUri = capCtrl.createUri(request, msgPath, Permission.read,
-                    Duration.ofDays(365));
-
-            response.header("Location", msgPath);
-            return new JSONObject().put("uri", msgUri).put("uri-r", msgReadOnlyUri);
+    public JSONArray postMessages(Request request, Response response) {
+        var json = new JSONArray(request.body());
+        if (json.length() == 0 || json.length() > MAX_BULK_MESSAGES) {
+            throw new IllegalArgumentException("must post between 1 and " + MAX_BULK_MESSAGES + " messages");
+        }
+
+        String userId = request.attribute(UserController.USERNAME_ATTR_KEY);
+        var texts = new ArrayList<String>(json.length());
+        for (var i = 0; i < json.length(); i++) {
+            var item = json.getJSONObject(i);
+            if (!item.getString("author").equals(userId)) {
+                throw new IllegalArgumentException("author must match authenticated user");
+            }
+
+            var message = item.getString("message");
+            if (message.length() > 1024) {
+                throw new IllegalArgumentException("message is too long");
+            }
+            texts.add(message);
+        }
+
+        var spaceId = Long.parseLong(request.params(":spaceId"));
+        var msgTime = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+        var ids = msgIds.nextIds(texts.size());
+        var rows = new ArrayList<List<?>>(ids.size());
+        for (var i = 0; i < ids.size(); i++) {
+            rows.add(Arrays.asList(ids.get(i), userId, spaceId, msgTime, texts.get(i)));
+        }
+        queries.withVoidTransaction(tx -> {
+            insertMessage.updateBatch(rows);
         });
+
+        var msgPaths = new ArrayList<String>(ids.size());
+        for (var i = 0; i < ids.size(); i++) {
+            recentMessages.add(new Message(ids.get(i), spaceId, userId, msgTime, texts.get(i)));
+            messageIndex.add(spaceId, ids.get(i), texts.get(i));
+            messageHub.publish(spaceId, ids.get(i));
+            msgPaths.add("/spaces/" + spaceId + "/messages/" + ids.get(i));
+        }
+
+        var msgUris = capCtrl.createUris(request, msgPaths, Permission.read.combine(Permission.write),
+                Duration.ofMinutes(5));
+        var msgReadOnlyUris = capCtrl.createUris(request, msgPaths, Permission.read, Duration.ofDays(365));
+
+        response.status(201);
+        var result = new JSONArray();
+        for (var i = 0; i < msgPaths.size(); i++) {
+            result.put(new JSONObject().put("uri", msgUris.get(i)).put("uri-r", msgReadOnlyUris.get(i)));
+        }
+        return result;
     }
 
-    public Message readMessage(Request request, Response response) {
+    public Object readMessage(Request request, Response response) {
         var msgId = Long.parseLong(request.params(":msgId"));
         var spaceId = Long.parseLong(request.params(":spaceId"));
-        var msg = database.findUnique(Message.class,
-                "SELECT msg_id, space_id, author, msg_time, msg_text " +
-                        "FROM messages " +
-                        "WHERE msg_id = ? AND space_id = ?",
-                msgId, spaceId);
 
+        var etag = Message.etag(spaceId, msgId);
+        var cached = recentMessages.find(spaceId, msgId);
+        if (CachePolicy.ifNoneMatch(request, etag) && (cached.isPresent()
+                || countMessage.findUniqueInt(msgId, spaceId) > 0 || messageArchive.find(spaceId, msgId).isPresent())) {
+            response.header("ETag", etag);
+            response.status(304);
+            return "";
+        }
+
+        var msg = cached.or(() -> findMessage.findOptional(Message.class, msgId, spaceId))
+                .or(() -> messageArchive.find(spaceId, msgId))
+                .orElse(null);
+        if (msg == null) {
+            halt(404);
+        }
+
+        response.header("ETag", etag);
         response.status(200);
         return msg;
     }
 
     public JSONArray findMessages(Request request, Response response) {
-        Instant since;
-        if (request.queryParams("since") != null) {
-            since = Instant.parse(request.queryParams("since"));
+        var spaceId = Long.parseLong(request.params(":spaceId"));
+        var limit = request.queryParams("limit") != null ? Integer.parseInt(request.queryParams("limit"))
+                : DEFAULT_PAGE_SIZE;
+        if (limit < 1 || limit > MAX_PAGE_SIZE) {
+            throw new IllegalArgumentException("limit must be between 1 and " + MAX_PAGE_SIZE);
+        }
+
+        MessageCursor after;
+        if (request.queryParams("cursor") != null) {
+            after = MessageCursor.decode(request.queryParams("cursor"));
+        } else if (request.queryParams("since") != null) {
+            after = new MessageCursor(Long.MAX_VALUE, Instant.parse(request.queryParams("since")));
         } else {
-            since = Instant.now().minus(1, ChronoUnit.DAYS);
+            after = new MessageCursor(Long.MAX_VALUE, Instant.now().minus(1, ChronoUnit.DAYS));
         }
+
+        var messages = recentMessages.findAfter(spaceId, after.msgTime, after.msgId, limit + 1)
+                .map(recent -> recent.stream().map(msg -> new MessageCursor(msg.msgId, msg.msgTime))
+                        .collect(Collectors.toList()))
+                .orElseGet(() -> findStoredMessages(spaceId, after, limit + 1));
+
+        response.status(200);
+        var perms = request.<Permission>attribute(UserController.PERMS_ATTR_KEY).subtract(Permission.write);
+        var msgsPath = "/spaces/" + spaceId + "/messages";
+        if (messages.size() > limit) {
+            messages = messages.subList(0, limit);
+            var next = messages.get(limit - 1).encode();
+            var nextUri = capCtrl.createUri(request, msgsPath, "cursor=" + next + "&limit=" + limit, perms,
+                    Duration.ofMinutes(10));
+            response.header("Link", "<" + nextUri.toASCIIString() + ">; rel=\"next\"");
+        }
+
+        var msgPaths = messages.stream().map(msg -> msgsPath + "/" + msg.msgId).collect(Collectors.toList());
+        return new JSONArray(capCtrl.createUris(request, msgPaths, perms, Duration.ofMinutes(10)));
+    }
+
+    public JSONArray searchMessages(Request request, Response response) {
         var spaceId = Long.parseLong(request.params(":spaceId"));
-        var messages = database.findAll(Long.class,
-                "SELECT msg_id " +
-                        "FROM messages " +
-                        "WHERE space_id = ? AND msg_time > ?",
-                spaceId, since);
+        var query = request.queryParams("q");
+        if (query == null) {
+            throw new IllegalArgumentException("missing query");
+        }
+
+        var limit = request.queryParams("limit") != null ? Integer.parseInt(request.queryParams("limit"))
+                : DEFAULT_PAGE_SIZE;
+        if (limit < 1 || limit > MAX_PAGE_SIZE) {
+            throw new IllegalArgumentException("limit must be between 1 and " + MAX_PAGE_SIZE);
+        }
+
+        // The index has no message times, so it cannot keep to the bound of a capability limited by a since caveat
+        if (request.attribute(MacaroonTokenStore.SINCE_CAVEAT_ATTR_KEY) != null) {
+            halt(403, new JSONObject().put("error", "search is not available to time-limited capabilities").toString());
+        }
+
+        var msgPaths = messageIndex.search(spaceId, query, limit).stream()
+                .map(id -> "/spaces/" + spaceId + "/messages/" + id)
+                .collect(Collectors.toList());
 
         response.status(200);
         var perms = request.<Permission>attribute(UserController.PERMS_ATTR_KEY).subtract(Permission.write);
-        return new JSONArray(messages.stream().map(id -> "/spaces/" + spaceId + "/messages/" + id)
-                .map(path -> capCtrl.createUri(request, path, perms, Duration.ofMinutes(10)))
-                .collect(Collectors.toList()));
+        return new JSONArray(capCtrl.createUris(request, msgPaths, perms, Duration.ofMinutes(10)));
+    }
+
+    private List<MessageCursor> findStoredMessages(long spaceId, MessageCursor after, int limit) {
+        var stored = findMessagesAfter.findAll(MessageCursor::fromRow, spaceId, after.msgTime, after.msgTime,
+                after.msgId, limit);
+
+        var archived = messageArchive.findAfter(spaceId, after.msgTime, after.msgId, limit);
+        if (archived.isEmpty()) {
+            return stored;
+        }
+
+        var seen = new HashSet<Long>();
+        var archivedCursors = archived.stream().map(msg -> new MessageCursor(msg.msgId, msg.msgTime));
+        return Stream.concat(archivedCursors, stored.stream())
+                .sorted((a, b) -> Message.compare(a.msgTime, a.msgId, b.msgTime, b.msgId))
+                .filter(cursor -> seen.add(cursor.msgId))
+                .limit(limit)
+                .collect(Collectors.toList());
+    }
+
+    public String streamMessages(Request request, Response response) throws InterruptedException {
+        var spaceId = Long.parseLong(request.params(":spaceId"));
+        var subscription = messageHub.subscribe(spaceId).orElse(null);
+        if (subscription == null) {
+            response.header("Retry-After", "30");
+            halt(503, new JSONObject().put("error", "too many subscribers").toString());
+        }
+
+        var perms = request.<Permission>attribute(UserController.PERMS_ATTR_KEY).subtract(Permission.write);
+        var msgsPath = "/spaces/" + spaceId + "/messages/";
+        var raw = response.raw();
+        raw.setStatus(200);
+        raw.setContentType("text/event-stream;charset=utf-8");
+        raw.setHeader("Cache-Control", "no-store");
+        raw.setHeader("X-Content-Type-Options", "nosniff");
+
+        // The filters only ran when the stream opened, so the credentials are read again every heartbeat
+        // interval and the stream ends when they stop being valid, expire or the stream reaches its lifetime.
+        var closeAt = Instant.now().plus(maxStreamLifetime);
+        for (var expiryKey : List.of(TokenController.TOKEN_EXPIRY_ATTR_KEY, CachePolicy.CAP_EXPIRY_ATTR_KEY)) {
+            Instant expiry = request.attribute(expiryKey);
+            if (expiry != null && expiry.isBefore(closeAt)) {
+                closeAt = expiry;
+            }
+        }
+        var checkAt = Instant.now().plus(STREAM_HEARTBEAT);
+
+        try (subscription) {
+            var out = raw.getOutputStream();
+            out.write(": connected\n\n".getBytes(UTF_8));
+            out.flush();
+            while (!subscription.isOverflowed()) {
+                var now = Instant.now();
+                if (!now.isBefore(checkAt)) {
+                    if (!tokenCtrl.isStillValid(request) || !capCtrl.isStillValid(request)) {
+                        break;
+                    }
+                    checkAt = now.plus(STREAM_HEARTBEAT);
+                }
+                if (!now.isBefore(closeAt)) {
+                    break;
+                }
+
+                var msgId = subscription.poll(min(Duration.between(now, checkAt), Duration.between(now, closeAt)));
+                if (msgId == null) {
+                    out.write(": heartbeat\n\n".getBytes(UTF_8));
+                } else {
+                    var uri = capCtrl.createUri(request, msgsPath + msgId, perms, Duration.ofMinutes(10));
+                    out.write(("id: " + msgId + "\nevent: message\ndata: " + uri + "\n\n").getBytes(UTF_8));
+                }
+                out.flush();
+            }
+
+            if (subscription.isOverflowed()) {
+                out.write("event: overflow\ndata: {\"error\":\"subscriber too slow\"}\n\n".getBytes(UTF_8));
+            } else {
+                out.write("event: expired\ndata: {\"error\":\"credentials expired\"}\n\n".getBytes(UTF_8));
+            }
+            out.flush();
+        } catch (IOException e) {
+            // Client disconnected
+        }
+
+        return "";
+    }
+
+    private static Duration min(Duration a, Duration b) {
+        return a.compareTo(b) < 0 ? a : b;
     }
 
     public static class Space {
@@ -188,6 +487,23 @@ public class SpaceController {
             this.owner = owner;
         }
 
+        public long getSpaceId() {
+            return spaceId;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getOwner() {
+            return owner;
+        }
+
+        // Weak, as every response mints a new messages capability URI: the bodies are equivalent, not identical.
+        static String etag(long spaceId, Permission perms) {
+            return "W/\"s" + spaceId + "-" + perms + "\"";
+        }
+
         @Override
         public String toString() {
             var space = new JSONObject()
@@ -214,6 +530,35 @@ public class SpaceController {
             this.msgText = msgText;
         }
 
+        static int compare(Instant msgTime, long msgId, Instant otherTime, long otherId) {
+            var cmp = msgTime.compareTo(otherTime);
+            return cmp != 0 ? cmp : Long.compare(msgId, otherId);
+        }
+
+        static String etag(long spaceId, long msgId) {
+            return "\"m" + spaceId + "-" + msgId + "\"";
+        }
+
+        public long getMsgId() {
+            return msgId;
+        }
+
+        public long getSpaceId() {
+            return spaceId;
+        }
+
+        public String getAuthor() {
+            return author;
+        }
+
+        public Instant getMsgTime() {
+            return msgTime;
+        }
+
+        public String getMsgText() {
+            return msgText;
+        }
+
         @Override
         public String toString() {
             var msg = new JSONObject()
@@ -235,4 +580,35 @@ public class SpaceController {
                     .put("msg_text", row.getString("msg_text"));
         }
     }
+
+    static class MessageCursor {
+        private final long msgId;
+        private final Instant msgTime;
+
+        MessageCursor(long msgId, Instant msgTime) {
+            this.msgId = msgId;
+            this.msgTime = msgTime;
+        }
+
+        static MessageCursor fromRow(ResultSet row) throws SQLException {
+            return new MessageCursor(row.getLong("msg_id"), row.getTimestamp("msg_time").toInstant());
+        }
+
+        String encode() {
+            return Base64Url.encode((msgTime + "," + msgId).getBytes(UTF_8));
+        }
+
+        static MessageCursor decode(String cursor) {
+            var parts = new String(Base64Url.decode(cursor), UTF_8).split(",");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("invalid cursor");
+            }
+
+            try {
+                return new MessageCursor(Long.parseLong(parts[1]), Instant.parse(parts[0]));
+            } catch (DateTimeParseException e) {
+                throw new IllegalArgumentException("invalid cursor");
+            }
+        }
+    }
 }
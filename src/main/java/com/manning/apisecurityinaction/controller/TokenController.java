@@ -14,6 +14,8 @@ import spark.Request;
 import spark.Response;
 
 public class TokenController {
+    public static final String TOKEN_ID_ATTR_KEY = "token_id";
+    public static final String TOKEN_EXPIRY_ATTR_KEY = "token_expiry";
     private static final String DEFAULT_SCOPES = "create_space read_space post_message read_message list_message " +
             "delete_message add_member";
     private final SecureTokenStore store;
@@ -48,10 +50,22 @@ public class TokenController {
                 return;
             }
             request.attribute(UserController.USERNAME_ATTR_KEY, token.username);
+            request.attribute(TOKEN_ID_ATTR_KEY, tokenId);
+            request.attribute(TOKEN_EXPIRY_ATTR_KEY, token.expiry);
             token.attributes.forEach(request::attribute);
         });
     }
 
+    /**
+     * Reads the bearer token that authenticated a request again, for responses that stay open long after the
+     * filters ran. Returns false once it has been revoked or has expired, and true when no token was used.
+     */
+    public boolean isStillValid(Request request) {
+        String tokenId = request.attribute(TOKEN_ID_ATTR_KEY);
+        return tokenId == null || store.read(request, tokenId).filter(token -> now().isBefore(token.expiry))
+                .isPresent();
+    }
+
     public JSONObject logout(Request request, Response response) {
         var authHeader = request.headers("Authorization");
         if (authHeader == null || !authHeader.startsWith("Bearer ")) {
@@ -6,10 +6,11 @@ import java.nio.charset.StandardCharsets;
 import java.util.Base64;
 import java.util.Set;
 
-import org.dalesbred.Database;
 import org.json.JSONObject;
 
 import com.lambdaworks.crypto.SCryptUtil;
+import com.manning.apisecurityinaction.Queries;
+import com.manning.apisecurityinaction.Queries.Query;
 
 import spark.Filter;
 import spark.Request;
@@ -24,10 +25,21 @@ public class UserController {
 
     public static final String USERNAME_PATTERN = "[a-zA-Z][a-zA-Z0-9]{1,29}";
     private static final String authPrefix = "Basic ";
-    private final Database database;
-
-    public UserController(Database database) {
-        this.database = database;
+    private final Query insertUser;
+    private final Query findPasswordHash;
+    private final Query findGroups;
+    private final Query findEffectivePermissions;
+
+    public UserController(Queries queries) {
+        this.insertUser = queries.define("users.insert", "INSERT INTO users(user_id, pw_hash) VALUES(?, ?)");
+        this.findPasswordHash = queries.define("users.find_pw_hash",
+                "SELECT pw_hash FROM users where user_id = ?");
+        this.findGroups = queries.define("group_members.find_groups", "SELECT DISTINCT group_id " +
+                "FROM group_members " +
+                "WHERE user_id = ?");
+        this.findEffectivePermissions = queries.define("effective_permissions.find", "SELECT perms " +
+                "FROM effective_permissions " +
+                "WHERE space_id = ? AND user_id = ?");
     }
 
     public JSONObject registerUser(Request request, Response response) throws Exception {
@@ -44,8 +56,7 @@ public class UserController {
         }
 
         var hash = SCryptUtil.scrypt(password, 32768, 8, 1);
-        database.updateUnique("INSERT INTO users(user_id, pw_hash)" +
-                "VALUES(?, ?)", username, hash);
+        insertUser.updateUnique(username, hash);
         response.status(201);
         response.header("Location", "/user/" + username);
         return new JSONObject().put("username", username);
@@ -71,16 +82,12 @@ public class UserController {
         var username = parts[0];
         var password = parts[1];
 
-        var hash = database.findOptional(String.class,
-                "SELECT pw_hash FROM users where user_id = ?", username);
+        var hash = findPasswordHash.findOptional(String.class, username);
         if (hash.isPresent() &&
                 SCryptUtil.check(password, hash.get())) {
             request.attribute(USERNAME_ATTR_KEY, username);
 
-            var groups = database.findAll(String.class, "SELECT DISTINCT group_id " +
-                    "FROM group_members " +
-                    "WHERE user_id = ?",
-                    username);
+            var groups = findGroups.findAll(String.class, username);
             request.attribute(GROUP_ATTR_KEY, groups);
         }
     }
@@ -99,12 +106,7 @@ public class UserController {
         var spaceId = Long.parseLong(request.params(":spaceId"));
         var username = (String) request.attribute(USERNAME_ATTR_KEY);
 
-        var permsVal = database.findOptional(String.class,
-                "SELECT rp.perms " +
-                        "FROM role_permissions rp join user_roles ur ON rp.role_id = ur.role_id " +
-                        "where ur.space_id = ? AND ur.user_id = ?",
-                spaceId,
-                username).orElse("");
+        var permsVal = findEffectivePermissions.findOptional(String.class, spaceId, username).orElse("");
         var perms = Permission.fromString(permsVal);
         Permission currentPerms = request.attribute(PERMS_ATTR_KEY);
         request.attribute("perms", currentPerms.combine(perms));
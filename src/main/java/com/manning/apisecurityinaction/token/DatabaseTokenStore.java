@@ -6,25 +6,39 @@ import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Optional;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
-import org.dalesbred.Database;
 import org.json.JSONObject;
 
+import com.manning.apisecurityinaction.Queries;
+import com.manning.apisecurityinaction.Queries.Query;
+
 import spark.Request;
 
 public class DatabaseTokenStore implements ConfidentialTokenStore {
-    private final Database database;
+    private final Query insertToken;
+    private final Query findToken;
+    private final Query deleteToken;
+    private final Query deleteExpiredTokens;
     private final SecureRandom rand;
 
-    public DatabaseTokenStore(Database database) {
-        this.database = database;
+    public DatabaseTokenStore(Queries queries, ScheduledExecutorService scheduler) {
+        this.insertToken = queries.define("tokens.insert",
+                "INSERT INTO tokens(token_id, user_id, expiry, attributes) VALUES(?, ?, ?, ?)");
+        this.findToken = queries.define("tokens.find", "SELECT user_id, expiry, attributes " +
+                "FROM tokens " +
+                "WHERE token_id = ?");
+        this.deleteToken = queries.define("tokens.delete", "DELETE FROM tokens WHERE token_id = ?");
+        this.deleteExpiredTokens = queries.define("tokens.delete_expired",
+                "DELETE FROM tokens WHERE expiry < current_timestamp");
         this.rand = new SecureRandom();
 
-        Executors.newSingleThreadScheduledExecutor()
-                .scheduleAtFixedRate(this::deleteExpiredToken, 10, 10, TimeUnit.MINUTES);
+        scheduler.scheduleAtFixedRate(this::deleteExpiredToken, 10, 10, TimeUnit.MINUTES);
     }
 
     private String randomId() {
@@ -39,8 +53,7 @@ public class DatabaseTokenStore implements ConfidentialTokenStore {
         var hashedTokenId = hash(tokenId);
         var attrs = new JSONObject(token.attributes).toString();
 
-        database.updateUnique("INSERT INTO tokens(token_id, user_id, expiry, attributes) VALUES(?, ?, ?, ?)",
-                hashedTokenId,
+        insertToken.updateUnique(hashedTokenId,
                 token.username,
                 token.expiry,
                 attrs);
@@ -48,18 +61,31 @@ public class DatabaseTokenStore implements ConfidentialTokenStore {
         return tokenId;
     }
 
+    @Override
+    public List<String> createAll(Request request, List<Token> tokens) {
+        var tokenIds = new ArrayList<String>(tokens.size());
+        var rows = new ArrayList<List<?>>(tokens.size());
+        for (var token : tokens) {
+            var tokenId = randomId();
+            tokenIds.add(tokenId);
+            rows.add(Arrays.asList(hash(tokenId), token.username, token.expiry,
+                    new JSONObject(token.attributes).toString()));
+        }
+
+        insertToken.updateBatch(rows);
+        return tokenIds;
+    }
+
     @Override
     public Optional<Token> read(Request request, String tokenId) {
         var hashTokenId = hash(tokenId);
-        return database.findOptional(this::readToken, "SELECT user_id, expiry, attributes " +
-                "FROM tokens " +
-                "WHERE token_id = ?", hashTokenId);
+        return findToken.findOptional(this::readToken, hashTokenId);
     }
 
     @Override
     public void revoke(Request request, String tokenId) {
         var hashTokenId = hash(tokenId);
-        database.updateUnique("DELETE FROM tokens WHERE token_id = ?", hashTokenId);
+        deleteToken.updateUnique(hashTokenId);
     }
 
     private Token readToken(ResultSet res) throws SQLException {
@@ -77,7 +103,7 @@ public class DatabaseTokenStore implements ConfidentialTokenStore {
     }
 
     public void deleteExpiredToken() {
-        database.update("DELETE FROM tokens WHERE expiry < current_timestamp");
+        deleteExpiredTokens.update();
     }
 
     static byte[] hash(String tokenId) {
@@ -1,9 +1,14 @@
 package com.manning.apisecurityinaction.token;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
 import java.security.Key;
 import java.time.Instant;
+import java.time.format.DateTimeParseException;
 import java.time.temporal.ChronoUnit;
+import java.util.List;
 import java.util.Optional;
+import java.util.stream.Collectors;
 
 import com.github.nitram509.jmacaroons.GeneralCaveatVerifier;
 import com.github.nitram509.jmacaroons.MacaroonsBuilder;
@@ -13,6 +18,8 @@ import com.github.nitram509.jmacaroons.verifier.TimestampCaveatVerifier;
 import spark.Request;
 
 public class MacaroonTokenStore implements SecureTokenStore {
+    public static final String SINCE_CAVEAT_ATTR_KEY = "since_caveat";
+
     private final TokenStore delegate;
     private final Key macKey;
 
@@ -37,6 +44,13 @@ public class MacaroonTokenStore implements SecureTokenStore {
         return macaroon.serialize();
     }
 
+    @Override
+    public List<String> createAll(Request request, List<Token> tokens) {
+        return delegate.createAll(request, tokens).stream()
+                .map(identifier -> MacaroonsBuilder.create("", macKey.getEncoded(), identifier).serialize())
+                .collect(Collectors.toList());
+    }
+
     @Override
     public Optional<Token> read(Request request, String tokenId) {
         var macaroon = MacaroonsBuilder.deserialize(tokenId);
@@ -80,12 +94,29 @@ public class MacaroonTokenStore implements SecureTokenStore {
             var minSince = Instant.parse(caveat.substring(8));
             var reqSince = Instant.now().minus(1, ChronoUnit.DAYS);
 
+            // A cursor takes precedence over since when listing messages, so its position is what is checked.
+            var cursorParam = request.queryParams("cursor");
             var sinceParam = request.queryParams("since");
-            if (sinceParam != null) {
+            if (cursorParam != null) {
+                reqSince = cursorTime(cursorParam);
+            } else if (sinceParam != null) {
                 reqSince = Instant.parse(sinceParam);
             }
 
-            return reqSince.isAfter(minSince);
+            if (reqSince == null || !reqSince.isAfter(minSince)) {
+                return false;
+            }
+            request.attribute(SINCE_CAVEAT_ATTR_KEY, minSince);
+            return true;
+        }
+
+        private static Instant cursorTime(String cursor) {
+            try {
+                var position = new String(Base64Url.decode(cursor), UTF_8);
+                return Instant.parse(position.substring(0, position.indexOf(',')));
+            } catch (IllegalArgumentException | IndexOutOfBoundsException | DateTimeParseException e) {
+                return null;
+            }
         }
 
     }
@@ -1,15 +1,21 @@
 package com.manning.apisecurityinaction.token;
 
 import java.time.Instant;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
 
 import spark.Request;
 
 public interface TokenStore {
     String create(Request request, Token token);
 
+    default List<String> createAll(Request request, List<Token> tokens) {
+        return tokens.stream().map(token -> create(request, token)).collect(Collectors.toList());
+    }
+
     Optional<Token> read(Request request, String tokenId);
 
     void revoke(Request request, String tokenId);
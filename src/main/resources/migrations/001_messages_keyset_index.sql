@@ -0,0 +1 @@
+CREATE INDEX msg_space_time_idx ON messages(space_id, msg_time, msg_id);
@@ -0,0 +1,9 @@
+CREATE TABLE audit_rollups (
+    rollup_time TIMESTAMP NOT NULL,
+    path VARCHAR(64) NOT NULL,
+    status INT NULL,
+    user_id VARCHAR(30) NULL,
+    request_count BIGINT NOT NULL
+);
+CREATE INDEX audit_rollups_time_idx ON audit_rollups(rollup_time);
+GRANT SELECT, INSERT ON audit_rollups TO natter_api_user;
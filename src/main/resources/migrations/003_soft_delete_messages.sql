@@ -0,0 +1,3 @@
+ALTER TABLE messages ADD COLUMN deleted_at TIMESTAMP NULL;
+CREATE INDEX msg_deleted_idx ON messages(deleted_at);
+GRANT SELECT, INSERT, UPDATE, DELETE ON spaces, messages TO natter_api_user;
@@ -0,0 +1,32 @@
+DROP VIEW permissions;
+ALTER TABLE group_permissions ALTER COLUMN user_id RENAME TO group_id;
+CREATE INDEX group_permissions_group_id_idx ON group_permissions(group_id);
+GRANT SELECT, INSERT, UPDATE ON group_permissions TO natter_api_user;
+
+CREATE VIEW permissions(space_id, user_or_group_id, perms) AS
+    SELECT space_id, user_id, perms from user_permissions
+    UNION ALL
+    SELECT space_id, group_id, perms from group_permissions;
+GRANT SELECT, INSERT ON permissions TO natter_api_user;
+
+CREATE INDEX group_members_group_id_idx on group_members(group_id);
+CREATE INDEX user_roles_role_id_idx ON user_roles(role_id);
+
+CREATE TABLE effective_permissions (
+    space_id INT NOT NULL REFERENCES spaces(space_id),
+    user_id VARCHAR(30) NOT NULL,
+    perms VARCHAR(3) NOT NULL,
+    PRIMARY KEY(space_id, user_id)
+);
+GRANT SELECT, INSERT, UPDATE, DELETE ON effective_permissions TO natter_api_user;
+
+CREATE TRIGGER user_roles_effective_perms AFTER INSERT, UPDATE, DELETE ON user_roles
+    FOR EACH ROW CALL "com.manning.apisecurityinaction.EffectivePermissionsTrigger";
+CREATE TRIGGER role_permissions_effective_perms AFTER INSERT, UPDATE, DELETE ON role_permissions
+    FOR EACH ROW CALL "com.manning.apisecurityinaction.EffectivePermissionsTrigger";
+CREATE TRIGGER user_permissions_effective_perms AFTER INSERT, UPDATE, DELETE ON user_permissions
+    FOR EACH ROW CALL "com.manning.apisecurityinaction.EffectivePermissionsTrigger";
+CREATE TRIGGER group_permissions_effective_perms AFTER INSERT, UPDATE, DELETE ON group_permissions
+    FOR EACH ROW CALL "com.manning.apisecurityinaction.EffectivePermissionsTrigger";
+CREATE TRIGGER group_members_effective_perms AFTER INSERT, UPDATE, DELETE ON group_members
+    FOR EACH ROW CALL "com.manning.apisecurityinaction.EffectivePermissionsTrigger";
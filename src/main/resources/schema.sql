@@ -11,13 +11,16 @@ CREATE TABLE messages (
     space_id INT NOT NULL REFERENCES spaces(space_id),
     author VARCHAR(30) NOT NULL,
     msg_time TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
-    msg_text VARCHAR(1024) NOT NULL
+    msg_text VARCHAR(1024) NOT NULL,
+    deleted_at TIMESTAMP NULL
 );
 CREATE SEQUENCE msg_id_seq;
 CREATE INDEX msg_timestamp_idx ON messages(msg_time);
+CREATE INDEX msg_space_time_idx ON messages(space_id, msg_time, msg_id);
+CREATE INDEX msg_deleted_idx ON messages(deleted_at);
 CREATE UNIQUE INDEX space_name_idx ON spaces(name);
 CREATE USER natter_api_user PASSWORD 'password';
-GRANT SELECT, INSERT, DELETE ON spaces, messages TO natter_api_user;
+GRANT SELECT, INSERT, UPDATE, DELETE ON spaces, messages TO natter_api_user;
 
 
 
@@ -39,11 +42,22 @@ CREATE TABLE audit_logs (
 CREATE SEQUENCE audit_id_seq;
 GRANT SELECT, INSERT ON audit_logs TO natter_api_user;
 
+CREATE TABLE audit_rollups (
+    rollup_time TIMESTAMP NOT NULL,
+    path VARCHAR(64) NOT NULL,
+    status INT NULL,
+    user_id VARCHAR(30) NULL,
+    request_count BIGINT NOT NULL
+);
+CREATE INDEX audit_rollups_time_idx ON audit_rollups(rollup_time);
+GRANT SELECT, INSERT ON audit_rollups TO natter_api_user;
+
 CREATE TABLE group_members (
     group_id VARCHAR(30) NOT NULL,
     user_id VARCHAR(30) NOT NULL REFERENCES users(user_id)
 );
 CREATE INDEX group_members_user_id_idx on group_members(user_id);
+CREATE INDEX group_members_group_id_idx on group_members(group_id);
 GRANT SELECT, DELETE ON group_members TO natter_api_user;
 
 CREATE TABLE user_permissions(
@@ -56,16 +70,17 @@ GRANT SELECT, INSERT ON user_permissions TO natter_api_user;
 
 CREATE TABLE group_permissions(
     space_id INT NOT NULL REFERENCES spaces(space_id),
-    user_id VARCHAR(30) NOT NULL REFERENCES users(user_id),
+    group_id VARCHAR(30) NOT NULL,
     perms VARCHAR(3) NOT NULL,
-    PRIMARY KEY (space_id, user_id)
+    PRIMARY KEY (space_id, group_id)
 );
-GRANT SELECT, INSERT ON group_permissions TO natter_api_user;
+CREATE INDEX group_permissions_group_id_idx ON group_permissions(group_id);
+GRANT SELECT, INSERT, UPDATE ON group_permissions TO natter_api_user;
 
 CREATE VIEW permissions(space_id, user_or_group_id, perms) AS
     SELECT space_id, user_id, perms from user_permissions
     UNION ALL
-    SELECT space_id, user_id, perms from group_permissions;
+    SELECT space_id, group_id, perms from group_permissions;
 GRANT SELECT, INSERT ON permissions TO natter_api_user;
 
 CREATE TABLE tokens (
@@ -94,4 +109,25 @@ CREATE TABLE user_roles (
     role_id VARCHAR(30) NOT NULL,
     PRIMARY KEY(space_id, user_id)
 );
-GRANT SELECT, INSERT ON user_roles TO natter_api_user;
\ No newline at end of file
+GRANT SELECT, INSERT ON user_roles TO natter_api_user;
+
+CREATE INDEX user_roles_role_id_idx ON user_roles(role_id);
+
+CREATE TABLE effective_permissions (
+    space_id INT NOT NULL REFERENCES spaces(space_id),
+    user_id VARCHAR(30) NOT NULL,
+    perms VARCHAR(3) NOT NULL,
+    PRIMARY KEY(space_id, user_id)
+);
+GRANT SELECT, INSERT, UPDATE, DELETE ON effective_permissions TO natter_api_user;
+
+CREATE TRIGGER user_roles_effective_perms AFTER INSERT, UPDATE, DELETE ON user_roles
+    FOR EACH ROW CALL "com.manning.apisecurityinaction.EffectivePermissionsTrigger";
+CREATE TRIGGER role_permissions_effective_perms AFTER INSERT, UPDATE, DELETE ON role_permissions
+    FOR EACH ROW CALL "com.manning.apisecurityinaction.EffectivePermissionsTrigger";
+CREATE TRIGGER user_permissions_effective_perms AFTER INSERT, UPDATE, DELETE ON user_permissions
+    FOR EACH ROW CALL "com.manning.apisecurityinaction.EffectivePermissionsTrigger";
+CREATE TRIGGER group_permissions_effective_perms AFTER INSERT, UPDATE, DELETE ON group_permissions
+    FOR EACH ROW CALL "com.manning.apisecurityinaction.EffectivePermissionsTrigger";
+CREATE TRIGGER group_members_effective_perms AFTER INSERT, UPDATE, DELETE ON group_members
+    FOR EACH ROW CALL "com.manning.apisecurityinaction.EffectivePermissionsTrigger";
@@ -0,0 +1,123 @@
+package com.manning.apisecurityinaction;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.dalesbred.Database;
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.junit.jupiter.api.Test;
+
+class MigrationsTest {
+
+    @Test
+    void newDatabaseIsCreatedAtLatestVersion() {
+        var datasource = JdbcConnectionPool.create("jdbc:h2:mem:migrations-new", "natter", "password");
+        try {
+            var database = Database.forDataSource(datasource);
+            Migrations.migrate(database);
+
+            assertEquals(Migrations.latestVersion(), database.findUniqueInt("SELECT version FROM schema_version"));
+        } finally {
+            datasource.dispose();
+        }
+    }
+
+    @Test
+    void baselineDatabaseIsUpgradedOnce() throws IOException {
+        var datasource = JdbcConnectionPool.create("jdbc:h2:mem:migrations-baseline", "natter", "password");
+        try {
+            var database = Database.forDataSource(datasource);
+            database.update(baselineSchema());
+            database.update("INSERT INTO spaces(space_id, name, owner) VALUES(1, 'space', 'demo')");
+            database.update("INSERT INTO messages(msg_id, space_id, author, msg_text) VALUES(1, 1, 'demo', 'hi')");
+
+            Migrations.migrate(database);
+            Migrations.migrate(database);
+
+            assertEquals(Migrations.latestVersion(), database.findUniqueInt("SELECT version FROM schema_version"));
+            assertEquals(1, database.findUniqueInt("SELECT COUNT(*) FROM messages WHERE deleted_at IS NULL"));
+            assertTrue(database.findUniqueInt("SELECT COUNT(*) FROM INFORMATION_SCHEMA.TABLES " +
+                    "WHERE TABLE_NAME = 'AUDIT_ROLLUPS'") > 0);
+        } finally {
+            datasource.dispose();
+        }
+    }
+
+    @Test
+    void upgradedDatabaseMatchesNewDatabase() throws IOException {
+        var fresh = JdbcConnectionPool.create("jdbc:h2:mem:migrations-fresh", "natter", "password");
+        var upgraded = JdbcConnectionPool.create("jdbc:h2:mem:migrations-upgraded", "natter", "password");
+        try {
+            var freshDatabase = Database.forDataSource(fresh);
+            Migrations.migrate(freshDatabase);
+            var upgradedDatabase = Database.forDataSource(upgraded);
+            upgradedDatabase.update(baselineSchema());
+            Migrations.migrate(upgradedDatabase);
+
+            assertEquals(describe(freshDatabase), describe(upgradedDatabase));
+        } finally {
+            fresh.dispose();
+            upgraded.dispose();
+        }
+    }
+
+    @Test
+    void effectivePermissionsAreBackfilledAndMaintained() throws IOException {
+        var datasource = JdbcConnectionPool.create("jdbc:h2:mem:migrations-perms", "natter", "password");
+        try {
+            var database = Database.forDataSource(datasource);
+            database.update(baselineSchema());
+            database.update("INSERT INTO users(user_id, pw_hash) VALUES('demo', 'x'), ('alice', 'x'), ('staff', 'x')");
+            database.update("INSERT INTO spaces(space_id, name, owner) VALUES(1, 'space', 'demo')");
+            database.update("INSERT INTO user_roles(space_id, user_id, role_id) VALUES(1, 'demo', 'owner')");
+            database.update("INSERT INTO group_members(group_id, user_id) VALUES('staff', 'alice')");
+            database.update("INSERT INTO group_permissions(space_id, user_id, perms) VALUES(1, 'staff', 'r')");
+
+            Migrations.migrate(database);
+
+            assertEquals("rwd", findPerms(database, "demo"));
+            assertEquals("r", findPerms(database, "alice"));
+
+            database.update("INSERT INTO group_members(group_id, user_id) VALUES('ops', 'alice')");
+            database.update("INSERT INTO group_permissions(space_id, group_id, perms) VALUES(1, 'ops', 'w')");
+            assertEquals("rw", findPerms(database, "alice"));
+        } finally {
+            datasource.dispose();
+        }
+    }
+
+    private static String findPerms(Database database, String userId) {
+        return database.findUnique(String.class,
+                "SELECT perms FROM effective_permissions WHERE space_id = 1 AND user_id = ?", userId);
+    }
+
+    private static List<String> describe(Database database) {
+        var columns = database.findAll(String.class, "SELECT TABLE_NAME || '.' || COLUMN_NAME || ' ' || " +
+                "ORDINAL_POSITION || ' ' || TYPE_NAME || ' ' || CHARACTER_MAXIMUM_LENGTH || ' ' || IS_NULLABLE " +
+                "FROM INFORMATION_SCHEMA.COLUMNS WHERE TABLE_SCHEMA = 'PUBLIC' ORDER BY 1");
+        var indexes = database.findAll(String.class, "SELECT DISTINCT TABLE_NAME || '.' || INDEX_NAME " +
+                "FROM INFORMATION_SCHEMA.INDEXES WHERE TABLE_SCHEMA = 'PUBLIC' AND INDEX_NAME NOT LIKE 'PRIMARY%' " +
+                "AND INDEX_NAME NOT LIKE 'CONSTRAINT%' ORDER BY 1");
+        var constraints = database.findAll(String.class, "SELECT TABLE_NAME || ' ' || CONSTRAINT_TYPE || ' ' || " +
+                "COLUMN_LIST FROM INFORMATION_SCHEMA.CONSTRAINTS WHERE TABLE_SCHEMA = 'PUBLIC' ORDER BY 1");
+        var triggers = database.findAll(String.class, "SELECT TABLE_NAME || '.' || TRIGGER_NAME " +
+                "FROM INFORMATION_SCHEMA.TRIGGERS ORDER BY 1");
+        var rights = database.findAll(String.class, "SELECT TABLE_NAME || ' ' || RIGHTS " +
+                "FROM INFORMATION_SCHEMA.RIGHTS WHERE GRANTEE = 'NATTER_API_USER' ORDER BY 1");
+        return List.of(columns.toString(), indexes.toString(), constraints.toString(), triggers.toString(),
+                rights.toString());
+    }
+
+    /**
+     * The schema.sql of the release before migrations were added.
+     */
+    static String baselineSchema() throws IOException {
+        try (var in = MigrationsTest.class.getResourceAsStream("/baseline-schema.sql")) {
+            return new String(in.readAllBytes(), UTF_8);
+        }
+    }
+}
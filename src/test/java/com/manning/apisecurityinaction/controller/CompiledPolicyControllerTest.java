@@ -0,0 +1,47 @@
+package com.manning.apisecurityinaction.controller;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.LocalTime;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+class CompiledPolicyControllerTest {
+    private static final String POLICY = "deny method == DELETE and hour < 9\n";
+
+    @Test
+    void reloadRejectsPolicyThatChangesSampledDecisions() {
+        var controller = new CompiledPolicyController(POLICY);
+        assertFalse(permitsDeleteAt(controller, 8));
+
+        assertThrows(IllegalArgumentException.class, () -> controller.reload("# permit everything\n"));
+        assertFalse(permitsDeleteAt(controller, 8));
+
+        controller.reload(POLICY + "deny method == DELETE and hour > 17\n");
+        assertFalse(permitsDeleteAt(controller, 8));
+    }
+
+    @Test
+    void reloadAcceptsChangesWhenAllowed() {
+        var controller = new CompiledPolicyController(POLICY, true);
+        assertFalse(permitsDeleteAt(controller, 8));
+
+        controller.reload("# permit everything\n");
+        assertTrue(permitsDeleteAt(controller, 8));
+    }
+
+    private static boolean permitsDeleteAt(CompiledPolicyController controller, int hour) {
+        return controller.checkPermitted(attributes("user", "demo"), attributes("path", "/spaces/1"),
+                attributes("method", "DELETE"), attributes("timeOfDay", LocalTime.of(hour, 0))).isPermitted();
+    }
+
+    private static Map<String, Object> attributes(String name, Object value) {
+        var attributes = new HashMap<String, Object>();
+        attributes.put(name, value);
+        return attributes;
+    }
+}
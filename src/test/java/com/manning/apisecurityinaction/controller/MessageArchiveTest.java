@@ -0,0 +1,89 @@
+package com.manning.apisecurityinaction.controller;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.stream.Collectors;
+
+import org.dalesbred.Database;
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.junit.jupiter.api.Test;
+
+import com.manning.apisecurityinaction.Queries;
+import com.manning.apisecurityinaction.controller.SpaceController.Message;
+
+class MessageArchiveTest {
+    private static final int MESSAGES = 2500;
+
+    @Test
+    void archivedMessagesCanBeReadAndRestored() throws IOException {
+        var datasource = JdbcConnectionPool.create("jdbc:h2:mem:archive-round-trip", "natter", "password");
+        var database = Database.forDataSource(datasource);
+        var dir = Files.createTempDirectory("archive");
+        try {
+            createMessagesTable(database);
+            var start = Instant.now().minus(100, ChronoUnit.DAYS).truncatedTo(ChronoUnit.MILLIS);
+            for (var i = 1; i <= MESSAGES; i++) {
+                database.update("INSERT INTO messages(msg_id, space_id, author, msg_time, msg_text) " +
+                        "VALUES(?, 1, 'demo', ?, ?)", i, start.plusSeconds(i), "message " + i);
+            }
+
+            var archive = new MessageArchive(new Queries(database, new Metrics()), dir);
+            assertEquals(MESSAGES, archive.archiveOlderThan(Instant.now().minus(30, ChronoUnit.DAYS)));
+            assertEquals(0, database.findUniqueInt("SELECT COUNT(*) FROM messages"));
+
+            assertEquals("message 1234", archive.find(1, 1234).map(Message::getMsgText).orElseThrow());
+            assertFalse(archive.find(2, 1234).isPresent());
+            var page = archive.findAfter(1, start.plusSeconds(999), 999, 1001);
+            assertEquals(1000, page.get(0).getMsgId());
+            assertEquals(2000, page.get(1000).getMsgId());
+
+            assertEquals("message 1000", archive.remove(1, 1000).map(Message::getMsgText).orElseThrow());
+            assertFalse(archive.find(1, 1000).isPresent());
+            assertEquals(1001, archive.findAfter(1, start.plusSeconds(999), 999, 1).get(0).getMsgId());
+
+            assertEquals(MESSAGES - 1, archive.restore(1));
+            assertTrue(archive.archivedSpaces().isEmpty());
+            var restored = database.findAll(Message.class,
+                    "SELECT msg_id, space_id, author, msg_time, msg_text FROM messages ORDER BY msg_id");
+            assertEquals(MESSAGES - 1, restored.size());
+            assertEquals(start.plusSeconds(1234), restored.get(1232).getMsgTime());
+            assertEquals("message 1234", restored.get(1232).getMsgText());
+            archive.close();
+
+            try (var files = Files.list(dir.resolve("space-1"))) {
+                assertEquals(0, files.collect(Collectors.toList()).size());
+            }
+        } finally {
+            datasource.dispose();
+        }
+    }
+
+    @Test
+    void archiveDirectoryIsOpenInOneProcessAtATime() throws IOException {
+        var datasource = JdbcConnectionPool.create("jdbc:h2:mem:archive-lock", "natter", "password");
+        var queries = new Queries(Database.forDataSource(datasource), new Metrics());
+        var dir = Files.createTempDirectory("archive");
+        try {
+            createMessagesTable(Database.forDataSource(datasource));
+            var archive = new MessageArchive(queries, dir);
+            assertThrows(IllegalStateException.class, () -> new MessageArchive(queries, dir));
+            archive.close();
+            new MessageArchive(queries, dir).close();
+        } finally {
+            datasource.dispose();
+        }
+    }
+
+    private static void createMessagesTable(Database database) {
+        database.update("CREATE TABLE messages (msg_id INT PRIMARY KEY, space_id INT NOT NULL, " +
+                "author VARCHAR(30) NOT NULL, msg_time TIMESTAMP NOT NULL, msg_text VARCHAR(1024) NOT NULL, " +
+                "deleted_at TIMESTAMP NULL)");
+    }
+}
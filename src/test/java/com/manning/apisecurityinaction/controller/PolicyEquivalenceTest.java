@@ -0,0 +1,52 @@
+package com.manning.apisecurityinaction.controller;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.time.LocalTime;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * accessrules.policy is a hand translation of accessrules.drl for CompiledPolicyController, so both must decide
+ * every request the same way.
+ */
+class PolicyEquivalenceTest {
+    private static final List<String> METHODS = List.of("GET", "POST", "PUT", "DELETE", "PATCH");
+    private static final List<String> PATHS = List.of("/spaces", "/spaces/1", "/spaces/1/messages/2",
+            "/logs", "/users");
+    private static final List<String> USERS = List.of("demo", "moderator");
+
+    @Test
+    void shippedPoliciesDecideAlike() throws IOException {
+        var drools = new DroolsAccessController();
+        var compiled = CompiledPolicyController.fromClasspath("/accessrules.policy");
+
+        for (var method : METHODS) {
+            for (var path : PATHS) {
+                for (var user : USERS) {
+                    for (var minute = 0; minute < 24 * 60; minute += 15) {
+                        var time = LocalTime.of(minute / 60, minute % 60);
+                        var subject = attributes("user", user);
+                        var resource = attributes("path", path);
+                        var action = attributes("method", method);
+                        var env = attributes("timeOfDay", time);
+
+                        assertEquals(drools.checkPermitted(subject, resource, action, env).isPermitted(),
+                                compiled.checkPermitted(subject, resource, action, env).isPermitted(),
+                                () -> method + " " + path + " by " + user + " at " + time);
+                    }
+                }
+            }
+        }
+    }
+
+    private static Map<String, Object> attributes(String name, Object value) {
+        var attributes = new HashMap<String, Object>();
+        attributes.put(name, value);
+        return attributes;
+    }
+}
@@ -0,0 +1,97 @@
+package com.manning.apisecurityinaction.token;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.jupiter.api.Test;
+
+import com.github.nitram509.jmacaroons.MacaroonsBuilder;
+import com.manning.apisecurityinaction.token.TokenStore.Token;
+
+import spark.Request;
+
+class MacaroonTokenStoreTest {
+    private final Map<String, Token> tokens = new ConcurrentHashMap<>();
+    private final TokenStore store = MacaroonTokenStore.wrap(new TokenStore() {
+        @Override
+        public String create(Request request, Token token) {
+            var tokenId = UUID.randomUUID().toString();
+            tokens.put(tokenId, token);
+            return tokenId;
+        }
+
+        @Override
+        public Optional<Token> read(Request request, String tokenId) {
+            return Optional.ofNullable(tokens.get(tokenId));
+        }
+
+        @Override
+        public void revoke(Request request, String tokenId) {
+            tokens.remove(tokenId);
+        }
+    }, new SecretKeySpec(new byte[32], "HmacSHA256"));
+
+    @Test
+    void sinceCaveatBoundsCursorPosition() {
+        // Older than the default one-day window, which the caveat alone would otherwise let through
+        var bound = Instant.now().minus(3, ChronoUnit.DAYS);
+        var tokenId = store.create(request(Map.of()), new Token(null, Instant.now().plus(1, ChronoUnit.HOURS)));
+        var caveated = new MacaroonsBuilder(MacaroonsBuilder.deserialize(tokenId))
+                .add_first_party_caveat("since > " + bound)
+                .getMacaroon().serialize();
+
+        var listing = request(Map.of());
+        assertTrue(store.read(listing, caveated).isPresent());
+        assertEquals(bound, listing.attribute(MacaroonTokenStore.SINCE_CAVEAT_ATTR_KEY));
+        assertTrue(store.read(request(Map.of("since", bound.plusSeconds(60).toString())), caveated).isPresent());
+        assertFalse(store.read(request(Map.of("since", bound.minusSeconds(60).toString())), caveated).isPresent());
+
+        assertTrue(store.read(request(Map.of("cursor", cursor(bound.plusSeconds(60)))), caveated).isPresent());
+        assertFalse(store.read(request(Map.of("cursor", cursor(bound.minusSeconds(60)))), caveated).isPresent());
+        assertFalse(store.read(request(Map.of("cursor", cursor(bound.minusSeconds(60)),
+                "since", bound.plusSeconds(60).toString())), caveated).isPresent());
+        assertFalse(store.read(request(Map.of("cursor", "not-a-cursor")), caveated).isPresent());
+    }
+
+    private static String cursor(Instant msgTime) {
+        return Base64Url.encode((msgTime + ",1").getBytes(UTF_8));
+    }
+
+    private static Request request(Map<String, String> params) {
+        var attributes = new HashMap<String, Object>();
+        return new Request() {
+            @Override
+            public String requestMethod() {
+                return "GET";
+            }
+
+            @Override
+            public String queryParams(String name) {
+                return params.get(name);
+            }
+
+            @Override
+            public void attribute(String name, Object value) {
+                attributes.put(name, value);
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public <T> T attribute(String name) {
+                return (T) attributes.get(name);
+            }
+        };
+    }
+}